@@ -0,0 +1,211 @@
+package com.github.kaeluka.spencer.instrumentation.benchmarks;
+
+import com.github.kaeluka.spencer.instrumentation.Instrument;
+import com.github.kaeluka.spencer.instrumentation.benchmarks.kernels.Kernel;
+import com.github.kaeluka.spencer.instrumentation.benchmarks.kernels.Kernels;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the hooks cost at run time. Every benchmark runs one of the
+ * {@link Kernels}, which repeats one kind of event, and reports the time
+ * per event (ns/op) and, with {@code -prof gc}, the bytes allocated per
+ * event. {@code hooks=none} runs the kernels uninstrumented, as the
+ * baseline; the other values instrument only fields (including arrays),
+ * variables, or methods, so that every kernel measures the hooks it is
+ * named after. Each of these runs once per {@code NativeInterface} sink.
+ *
+ * With {@code -p paused=true}, the hooks are paused through
+ * {@code NativeInterface.pause()}, which should come close to the baseline.
+ * {@code -p mode=invokedynamic} links the hooks through {@code HookLinker};
+ * its backends can be set with for instance
+ * {@code -jvmArgsAppend -Dorg.spencer.instrumentation.hooks.backend.read=off}.
+ *
+ * The binary sink writes to /dev/null where there is one. The mapped sink
+ * writes to a temporary directory, which needs a lot of space.
+ *
+ * @author Stephan Brandauer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HookBenchmark {
+	private static final int N = 1024;
+	private static final int DEPTH = 64;
+	private static final String KERNELS = Kernels.class.getPackage().getName()+".";
+
+	@Param({"none", "fields", "variables", "methods"})
+	public String hooks;
+
+	@Param({"null", "binary", "mapped"})
+	public String sink;
+
+	@Param({"false"})
+	public boolean paused;
+
+	@Param({"invokestatic"})
+	public String mode;
+
+	private Kernel kernel;
+	private final Object val = new Object();
+
+	/**
+	 * Defines the kernels itself (instrumented, unless hooks is "none"), and
+	 * leaves everything else to its parent.
+	 */
+	private static final class KernelLoader extends ClassLoader {
+		private final boolean instrument;
+
+		KernelLoader(ClassLoader parent, boolean instrument) {
+			super(parent);
+			this.instrument = instrument;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!name.startsWith(KERNELS) || name.equals(Kernel.class.getName())) {
+				return super.loadClass(name, resolve);
+			}
+			synchronized (this.getClassLoadingLock(name)) {
+				Class<?> ret = this.findLoadedClass(name);
+				if (ret == null) {
+					final byte[] original;
+					try (InputStream in = this.getParent().getResourceAsStream(name.replace('.', '/')+".class")) {
+						if (in == null) {
+							throw new ClassNotFoundException(name);
+						}
+						original = IOUtils.toByteArray(in);
+					} catch (IOException e) {
+						throw new ClassNotFoundException(name, e);
+					}
+					final byte[] bytes = this.instrument ? Instrument.transform(original) : original;
+					ret = this.defineClass(name, bytes, 0, bytes.length);
+				}
+				if (resolve) {
+					this.resolveClass(ret);
+				}
+				return ret;
+			}
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		// must happen before Instrument and NativeInterface are initialized
+		System.setProperty("org.spencer.instrumentation.fields.enable",    Boolean.toString(this.hooks.equals("fields")));
+		System.setProperty("org.spencer.instrumentation.variables.enable", Boolean.toString(this.hooks.equals("variables")));
+		System.setProperty("org.spencer.instrumentation.methods.enable",   Boolean.toString(this.hooks.equals("methods")));
+		System.setProperty("org.spencer.instrumentation.tracing.enable",   "false");
+		System.setProperty("org.spencer.instrumentation.checking.enable",  "false");
+		System.setProperty("org.spencer.instrumentation.cache.dir",        "");
+		System.setProperty("org.spencer.instrumentation.sink", this.sink);
+		System.setProperty("org.spencer.instrumentation.guard.paused",     Boolean.toString(this.paused));
+		System.setProperty("org.spencer.instrumentation.hooks.mode",       this.mode);
+		final File devNull = new File("/dev/null");
+		if (this.sink.equals("binary") && devNull.exists()) {
+			System.setProperty("org.spencer.instrumentation.sink.file", devNull.getPath());
+		} else {
+			final File dir = Files.createTempDirectory("spencer-hooks").toFile();
+			System.out.println("\nevents go to "+dir);
+			System.setProperty("org.spencer.instrumentation.sink.file", new File(dir, "trace.bin").getPath());
+		}
+
+		final boolean instrument = !this.hooks.equals("none");
+		final Class<?> kernels = new KernelLoader(HookBenchmark.class.getClassLoader(), instrument)
+				.loadClass(Kernels.class.getName());
+		if (!Instrument.getErrors().isEmpty()) {
+			throw new IllegalStateException("the kernels do not transform cleanly: "+Instrument.getErrors());
+		}
+		this.kernel = (Kernel) kernels.getConstructor(int.class).newInstance(N);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int read() {
+		return this.kernel.readField(N);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void modify() {
+		this.kernel.modifyField(N);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public Object loadFieldA() {
+		return this.kernel.loadFieldA(N);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void storeFieldA() {
+		this.kernel.storeFieldA(N, this.val);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public int readArray() {
+		return this.kernel.readArray(N);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void modifyArray() {
+		this.kernel.modifyArray(N);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public Object loadArrayA() {
+		return this.kernel.loadArrayA(N);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void storeArrayA() {
+		this.kernel.storeArrayA(N, this.val);
+	}
+
+	// two loads and two stores per op
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public Object loadStoreVar() {
+		return this.kernel.vars(N);
+	}
+
+	// one methodEnter and one methodExit per op
+	@Benchmark
+	@OperationsPerInvocation(DEPTH)
+	public int methodEnterExit() {
+		return this.kernel.callChain(DEPTH);
+	}
+
+	// one newObj and one constructor call per op
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public Object newObj() {
+		return this.kernel.allocate(N);
+	}
+}
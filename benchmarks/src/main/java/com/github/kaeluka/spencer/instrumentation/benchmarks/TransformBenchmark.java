@@ -0,0 +1,139 @@
+package com.github.kaeluka.spencer.instrumentation.benchmarks;
+
+import com.github.kaeluka.spencer.instrumentation.Instrument;
+import com.github.kaeluka.spencer.instrumentation.runtime.SiteTable;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Instrument#transform(byte[])} over the classes listed in
+ * {@code corpus.txt}, one class per operation:
+ *
+ * <ul>
+ * <li>classes/sec: the score of {@code transform}</li>
+ * <li>bytes/sec: the {@code bytes} counter</li>
+ * <li>allocation per class: {@code gc.alloc.rate.norm} with {@code -prof gc}</li>
+ * <li>code size growth: printed once per fork</li>
+ * </ul>
+ *
+ * Every combination of the flags runs in its own fork, as the instrumentation
+ * reads them only once. To run fewer, pin some, for instance
+ * {@code -p tracing=false -p checking=false}.
+ *
+ * @author Stephan Brandauer
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TransformBenchmark {
+	@Param({"true", "false"})
+	public boolean fields;
+
+	@Param({"true", "false"})
+	public boolean variables;
+
+	@Param({"true", "false"})
+	public boolean methods;
+
+	@Param({"false", "true"})
+	public boolean tracing;
+
+	@Param({"false", "true"})
+	public boolean checking;
+
+	private byte[][] corpus;
+	private int next = 0;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		// original class file bytes transformed
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		// must happen before Instrument is initialized, which reads them
+		System.setProperty("org.spencer.instrumentation.fields.enable",    Boolean.toString(this.fields));
+		System.setProperty("org.spencer.instrumentation.variables.enable", Boolean.toString(this.variables));
+		System.setProperty("org.spencer.instrumentation.methods.enable",   Boolean.toString(this.methods));
+		System.setProperty("org.spencer.instrumentation.tracing.enable",   Boolean.toString(this.tracing));
+		System.setProperty("org.spencer.instrumentation.checking.enable",  Boolean.toString(this.checking));
+		System.setProperty("org.spencer.instrumentation.cache.dir", "");
+
+		this.corpus = readCorpus();
+		long in = 0;
+		long out = 0;
+		for (byte[] original : this.corpus) {
+			in += original.length;
+			out += Instrument.transform(original).length;
+		}
+		if (!Instrument.getErrors().isEmpty()) {
+			throw new IllegalStateException("the corpus does not transform cleanly: "+Instrument.getErrors());
+		}
+		System.out.printf("%ncorpus: %d classes, %d bytes -> %d bytes (%+.1f%%)%n",
+				this.corpus.length, in, out, 100.0 * (out - in) / in);
+	}
+
+	private static byte[][] readCorpus() throws IOException {
+		final List<byte[]> ret = new ArrayList<>();
+		try (BufferedReader names = new BufferedReader(new InputStreamReader(
+				TransformBenchmark.class.getResourceAsStream("/corpus.txt"), StandardCharsets.UTF_8))) {
+			String name;
+			while ((name = names.readLine()) != null) {
+				name = name.trim();
+				if (name.isEmpty() || name.startsWith("#")) {
+					continue;
+				}
+				try (InputStream in = TransformBenchmark.class.getResourceAsStream("/"+name+".class")) {
+					if (in == null) {
+						throw new IOException("corpus class not on the class path: "+name);
+					}
+					ret.add(IOUtils.toByteArray(in));
+				}
+			}
+		}
+		return ret.toArray(new byte[0][]);
+	}
+
+	@Benchmark
+	public byte[] transform(Counters counters) {
+		final byte[] original = this.corpus[this.next];
+		this.next = (this.next + 1) % this.corpus.length;
+		counters.bytes += original.length;
+		if (SiteTable.size() > (1 << 16)) {
+			// every transform registers its sites anew
+			SiteTable.clear();
+		}
+		return Instrument.transform(original);
+	}
+}
@@ -0,0 +1,32 @@
+package com.github.kaeluka.spencer.instrumentation.benchmarks.kernels;
+
+/**
+ * What {@link com.github.kaeluka.spencer.instrumentation.benchmarks.HookBenchmark}
+ * calls. This interface itself is never instrumented, only {@link Kernels}
+ * is.
+ *
+ * @author Stephan Brandauer
+ */
+public interface Kernel {
+	int readField(int n);
+
+	void modifyField(int n);
+
+	Object loadFieldA(int n);
+
+	void storeFieldA(int n, Object val);
+
+	int readArray(int n);
+
+	void modifyArray(int n);
+
+	Object loadArrayA(int n);
+
+	void storeArrayA(int n, Object val);
+
+	Object vars(int n);
+
+	int callChain(int depth);
+
+	Object allocate(int n);
+}
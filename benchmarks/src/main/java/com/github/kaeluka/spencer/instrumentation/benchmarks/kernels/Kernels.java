@@ -0,0 +1,131 @@
+package com.github.kaeluka.spencer.instrumentation.benchmarks.kernels;
+
+/**
+ * Small loops that each exercise one kind of hook, {@code n} times. The loop
+ * counters add variable hooks of their own when variables are instrumented.
+ *
+ * @author Stephan Brandauer
+ */
+public class Kernels implements Kernel {
+	private int count = 0;
+	private Object ref = new Object();
+	private final int[] ints;
+	private final Object[] refs;
+
+	public Kernels(int size) {
+		this.ints = new int[size];
+		this.refs = new Object[size];
+	}
+
+	private static final class Cell {
+		final int val;
+
+		Cell(int val) {
+			this.val = val;
+		}
+	}
+
+	// read
+	@Override
+	public int readField(int n) {
+		int ret = 0;
+		for (int i = 0; i < n; ++i) {
+			ret += this.count;
+		}
+		return ret;
+	}
+
+	// modify
+	@Override
+	public void modifyField(int n) {
+		for (int i = 0; i < n; ++i) {
+			this.count = i;
+		}
+	}
+
+	// loadFieldA
+	@Override
+	public Object loadFieldA(int n) {
+		Object ret = null;
+		for (int i = 0; i < n; ++i) {
+			ret = this.ref;
+		}
+		return ret;
+	}
+
+	// storeFieldA
+	@Override
+	public void storeFieldA(int n, Object val) {
+		for (int i = 0; i < n; ++i) {
+			this.ref = val;
+		}
+	}
+
+	// readArray
+	@Override
+	public int readArray(int n) {
+		final int[] ints = this.ints;
+		int ret = 0;
+		for (int i = 0; i < n; ++i) {
+			ret += ints[i];
+		}
+		return ret;
+	}
+
+	// modifyArray
+	@Override
+	public void modifyArray(int n) {
+		final int[] ints = this.ints;
+		for (int i = 0; i < n; ++i) {
+			ints[i] = i;
+		}
+	}
+
+	// loadArrayA
+	@Override
+	public Object loadArrayA(int n) {
+		final Object[] refs = this.refs;
+		Object ret = null;
+		for (int i = 0; i < n; ++i) {
+			ret = refs[i];
+		}
+		return ret;
+	}
+
+	// storeArrayA
+	@Override
+	public void storeArrayA(int n, Object val) {
+		final Object[] refs = this.refs;
+		for (int i = 0; i < n; ++i) {
+			refs[i] = val;
+		}
+	}
+
+	// loadVar and storeVar
+	@Override
+	public Object vars(int n) {
+		Object a = this;
+		Object b = null;
+		for (int i = 0; i < n; ++i) {
+			b = a;
+			a = b;
+		}
+		return b;
+	}
+
+	// methodEnter and methodExit
+	@Override
+	public int callChain(int depth) {
+		return (depth == 0) ? 0 : 1 + this.callChain(depth - 1);
+	}
+
+	// newObj, and methodEnter and methodExit of the constructor
+	@Override
+	public Object allocate(int n) {
+		Object ret = null;
+		for (int i = 0; i < n; ++i) {
+			ret = new Cell(i);
+		}
+		return ret;
+	}
+}
@@ -1,6 +1,17 @@
-import java.util.Arrays;
+import com.github.kaeluka.spencer.instrumentation.runtime.EventBuffer;
+import com.github.kaeluka.spencer.instrumentation.runtime.EventFlusher;
+import com.github.kaeluka.spencer.instrumentation.runtime.EventSinks;
+import com.github.kaeluka.spencer.instrumentation.runtime.HookLinker;
+import com.github.kaeluka.spencer.instrumentation.runtime.ObjectIds;
+import com.github.kaeluka.spencer.instrumentation.runtime.Sampler;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.HashMap;
 
+import static com.github.kaeluka.spencer.instrumentation.runtime.EventKind.*;
+
 public class NativeInterface {
 	public static final int SPECIAL_VAL_NORMAL = 0; // normal
 	public static final int SPECIAL_VAL_THIS = 1; //returned as callee id from constructors
@@ -11,6 +22,12 @@ public class NativeInterface {
 
 	private static final HashMap<Integer, String> kindToNames;
 
+	// all hooks write fixed-size binary records into a buffer owned by the
+	// current thread, the flusher moves full buffers to the sink in the
+	// background (see EventSinks for the configuration)
+	private static final EventFlusher flusher = new EventFlusher(EventSinks.fromProperties(), EventSinks.bufferedRecords);
+	private static final ThreadLocal<EventBuffer> events = ThreadLocal.withInitial(flusher::newBuffer);
+
 	static {
 		kindToNames = new HashMap<>();
 		kindToNames.put(SPECIAL_VAL_NORMAL,          "SPECIAL_VAL_NORMAL");
@@ -19,26 +36,63 @@ public class NativeInterface {
 		kindToNames.put(SPECIAL_VAL_NOT_IMPLEMENTED, "NOT_IMPLEMENTED");
 		kindToNames.put(SPECIAL_VAL_JVM,             "JVM");
 		kindToNames.put(SPECIAL_VAL_MAX,             "SPECIAL_VAL_MAX");
+
+		Runtime.getRuntime().addShutdownHook(new Thread(flusher::close, "spencer-event-flush"));
 	}
 
 	public static String valKindToString(int valKind) {
 		return kindToNames.get(valKind);
 	}
 
-	public static String valAndValKindToString(Object val, String type, int valKind) {
-		switch (valKind) {
-		case SPECIAL_VAL_NORMAL:
-			if (val != null) {
-				return val.toString();
-			} else {
-				return "NULL:"+type+"\t";
-			}
-		case SPECIAL_VAL_THIS:
-		case SPECIAL_VAL_STATIC:
-			return valKindToString(valKind)+":"+type;
-		default:
-			return valKindToString(valKind)+"\t";
-		}
+	private static long oid(Object val) {
+		return ObjectIds.id(val);
+	}
+
+	public static void flush() {
+		flusher.flush(events.get());
+	}
+
+	// read by the guard in front of every hook (unless the classes were
+	// instrumented with guard.enable=false), use pause and resume
+	public static volatile boolean hooksEnabled = !Boolean.getBoolean("org.spencer.instrumentation.guard.paused");
+
+	/**
+	 * Stops recording events until {@link #resume()}. Calls that are running
+	 * meanwhile miss their methodEnter or their methodExit event.
+	 */
+	public static void pause() {
+		hooksEnabled = false;
+	}
+
+	public static void resume() {
+		hooksEnabled = true;
+	}
+
+	public static boolean isPaused() {
+		return !hooksEnabled;
+	}
+
+	// All hooks take the id of their instrumentation site as the last
+	// argument. Everything that is known statically (class, field and method
+	// names, descriptors, variable indices) is kept in the SiteTable.
+
+	// the bootstrap method of invokedynamic hooks, see HookLinker
+
+	public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type)
+			throws ReflectiveOperationException {
+		return HookLinker.link(MethodHandles.lookup(), name, type);
+	}
+
+	////////////////////////////////////////////////////////////////
+
+	// called before a sampled hook; the hook is skipped if they return false
+
+	public static boolean sampleFixed(int site, int rate) {
+		return Sampler.everyNth(site, rate);
+	}
+
+	public static boolean sampleRandom(int site, int rate) {
+		return Sampler.oneIn(rate);
 	}
 
 	////////////////////////////////////////////////////////////////
@@ -47,13 +101,11 @@ public class NativeInterface {
 			Object[] arr,
 			int idx,
 			Object val,
-			String calleeClass,
-			String callerMethod,
-			String callerClass,
 			int callerValKind,
-			Object caller) {
-		final String elementType = calleeClass.substring(1);	
-		NativeInterface.loadFieldA(val, SPECIAL_VAL_NORMAL, arr, calleeClass, "_"+idx, elementType, callerClass, callerMethod, callerValKind, caller);
+			Object caller,
+			int site) {
+		events.get().record(header(LOAD_ARRAY_A, SPECIAL_VAL_NORMAL, callerValKind, 0),
+				site, oid(arr), oid(caller), oid(val), 0, idx, 0);
 	}
 
 	public static void storeArrayA(
@@ -61,13 +113,11 @@ public class NativeInterface {
 			Object[] arr,
 			int idx,
 			Object oldVal,
-			String holderClass,
-			String callerMethod,
-			String callerClass,
 			int callerValKind,
-			Object caller) {
-		final String elementType = holderClass.substring(1);
-		NativeInterface.storeFieldA(SPECIAL_VAL_NORMAL, arr, newVal, oldVal, holderClass, "_"+idx, elementType, callerClass, callerMethod, callerValKind, caller);
+			Object caller,
+			int site) {
+		events.get().record(header(STORE_ARRAY_A, SPECIAL_VAL_NORMAL, callerValKind, 0),
+				site, oid(arr), oid(caller), oid(newVal), oid(oldVal), idx, 0);
 	}
 
 	public static void readArray(
@@ -75,8 +125,9 @@ public class NativeInterface {
 			int idx,
 			int callerValKind,
 			Object caller,
-			String callerClass) {
-		NativeInterface.read(SPECIAL_VAL_NORMAL, arr, arr.getClass().getName(), "_"+idx, callerValKind, caller, callerClass);
+			int site) {
+		events.get().record(header(READ_ARRAY, SPECIAL_VAL_NORMAL, callerValKind, 0),
+				site, oid(arr), oid(caller), 0, 0, idx, 0);
 	}
 
 	public static void modifyArray(
@@ -84,62 +135,124 @@ public class NativeInterface {
 			int idx,
 			int callerValKind,
 			Object caller,
-			String callerClass) {
-		NativeInterface.modify(SPECIAL_VAL_NORMAL, arr, arr.getClass().getName(), "_"+idx, callerValKind, caller, callerClass);
+			int site) {
+		events.get().record(header(MODIFY_ARRAY, SPECIAL_VAL_NORMAL, callerValKind, 0),
+				site, oid(arr), oid(caller), 0, 0, idx, 0);
 	}
 	
 	////////////////////////////////////////////////////////////////
 
-	public static void methodExit(
-			String mname, String cname) {
-		System.err.println("methodExit(      "+cname+"::"+mname+")");
+	public static void methodExit(int site) {
+		events.get().record(header(METHOD_EXIT, 0, 0, 0),
+				site, 0, 0, 0, 0, 0, 0);
+	}
+
+	// methodEnter gets only the reference typed arguments; common arities
+	// have their own hook, so that calling them does not allocate
+
+	public static void methodEnter0(
+			int calleeValKind,
+			Object callee,
+			int site) {
+		events.get().record(header(METHOD_ENTER, calleeValKind, 0, 0),
+				pack(site, 0), oid(callee), 0, 0, 0, 0, 0);
+	}
+
+	public static void methodEnter1(
+			int calleeValKind,
+			Object callee,
+			Object arg0,
+			int site) {
+		events.get().record(header(METHOD_ENTER, calleeValKind, 0, 0),
+				pack(site, 1), oid(callee), oid(arg0), 0, 0, 0, 0);
+	}
+
+	public static void methodEnter2(
+			int calleeValKind,
+			Object callee,
+			Object arg0,
+			Object arg1,
+			int site) {
+		events.get().record(header(METHOD_ENTER, calleeValKind, 0, 0),
+				pack(site, 2), oid(callee), oid(arg0), oid(arg1), 0, 0, 0);
+	}
+
+	public static void methodEnter3(
+			int calleeValKind,
+			Object callee,
+			Object arg0,
+			Object arg1,
+			Object arg2,
+			int site) {
+		events.get().record(header(METHOD_ENTER, calleeValKind, 0, 0),
+				pack(site, 3), oid(callee), oid(arg0), oid(arg1), oid(arg2), 0, 0);
+	}
+
+	public static void methodEnter4(
+			int calleeValKind,
+			Object callee,
+			Object arg0,
+			Object arg1,
+			Object arg2,
+			Object arg3,
+			int site) {
+		events.get().record(header(METHOD_ENTER, calleeValKind, 0, 0),
+				pack(site, 4), oid(callee), oid(arg0), oid(arg1), oid(arg2), oid(arg3), 0);
+	}
+
+	public static void methodEnter5(
+			int calleeValKind,
+			Object callee,
+			Object arg0,
+			Object arg1,
+			Object arg2,
+			Object arg3,
+			Object arg4,
+			int site) {
+		events.get().record(header(METHOD_ENTER, calleeValKind, 0, 0),
+				pack(site, 5), oid(callee), oid(arg0), oid(arg1), oid(arg2), oid(arg3), oid(arg4));
 	}
 
+	/**
+	 * For methods with more than {@code ENTER_ARGS} reference typed
+	 * arguments.
+	 */
 	public static void methodEnter(
-			String name,
-			String signature,
-			String calleeClass,
 			int calleeValKind,
 			Object callee,
-			Object[] args) {
-		String argsStr = (args==null) ? "[]" : Arrays.asList(args).toString();
-//		if (args != null) {
-//			for (Object arg : args) {
-//				argsStr += ((arg != null) ? arg.toString() : "null") + " ";
-//			}
-//			argsStr = argsStr.trim();
-//		}
-		System.err.println("methodEnter(     "+
-				valAndValKindToString(callee, calleeClass, calleeValKind)+" . "+name+signature+", "+
-				"args="+argsStr+")");
+			Object[] args,
+			int site) {
+		final int argc = args.length;
+		final EventBuffer buffer = events.get();
+		buffer.record(header(METHOD_ENTER, calleeValKind, 0, 0),
+				pack(site, argc), oid(callee), arg(args, 0), arg(args, 1), arg(args, 2), arg(args, 3), arg(args, 4));
+		// the remaining arguments follow in as many METHOD_ARGS records as needed
+		for (int i = ENTER_ARGS; i < argc; i += RECORD_WORDS - 1) {
+			buffer.record(header(METHOD_ARGS, 0, 0, 0),
+					arg(args, i), arg(args, i+1), arg(args, i+2), arg(args, i+3), arg(args, i+4), arg(args, i+5), arg(args, i+6));
+		}
+	}
+
+	private static long arg(Object[] args, int i) {
+		return (i < args.length) ? oid(args[i]) : 0;
 	}
 
 	public static void afterInitMethod(
 			Object callee,
-			String calleeClass) {
-		System.err.println("afterInitMethod( "+
-				callee+", "+
-				"calleeClass="+calleeClass+", "+
-				")");
+			int site) {
+		events.get().record(header(AFTER_INIT, 0, 0, 0),
+				site, oid(callee), 0, 0, 0, 0, 0);
 	}
 
 	////////////////////////////////////////////////////////////////
 
 	public static void newObj(
 			Object created,
-			String createdClass,
-			String callerClass,
-			String callerMethod,
 			int callerValKind,
-			Object caller) {
-		System.err.println("newObj("+
-				"created="+created+", "+
-				"createdClass="+createdClass+", "+
-				"callerClass="+callerClass+", "+
-				"callerMethod="+callerMethod+", "+
-				"callerValKind="+valKindToString(callerValKind)+", "+
-				"caller="+caller+", "+
-				")");
+			Object caller,
+			int site) {
+		events.get().record(header(NEW_OBJ, 0, callerValKind, 0),
+				site, oid(created), oid(caller), 0, 0, 0, 0);
 	}
 
 	////////////////////////////////////////////////////////////////
@@ -149,47 +262,44 @@ public class NativeInterface {
 			Object holder,
 			Object newVal,
 			Object oldVal,
-			String holderClass,
-			String fieldName,
-			String type,
-			String callerClass,
-			String callerMethod,
 			int callerValKind,
-			Object caller) {
-		System.err.println("storeFieldA(     "+
-				valAndValKindToString(holder, holderClass, holderValKind)+
-				" . "+fieldName+				
-				" = "+newVal+", "+
-				"oldVal="+oldVal+", "+
-//				"holderClass="+holderClass+", "+
-				"fieldType="+type+", "+
-//				"callerClass="+callerClass+", "+
-				"callerMethod="+callerMethod+", "+
-				"caller="+valAndValKindToString(caller, callerClass, callerValKind)+", "+
-				")");
+			Object caller,
+			int site) {
+		events.get().record(header(STORE_FIELD_A, holderValKind, callerValKind, 0),
+				site, oid(holder), oid(caller), oid(newVal), oid(oldVal), 0, 0);
+	}
+
+	// the number of accesses at a site during one call, if field accesses
+	// are aggregated
+	public static void accessCount(
+			int count,
+			int site) {
+		events.get().record(header(ACCESS_COUNT, 0, 0, 0),
+				site, count, 0, 0, 0, 0, 0);
+	}
+
+	// the elements [lo, hi) of arr that a loop read or modified, if loops
+	// over arrays report ranges
+	public static void arrayRange(
+			Object arr,
+			int lo,
+			int hi,
+			int callerValKind,
+			Object caller,
+			int site) {
+		events.get().record(header(ARRAY_RANGE, SPECIAL_VAL_NORMAL, callerValKind, 0),
+				site, oid(arr), oid(caller), 0, 0, lo, hi);
 	}
 
 	public static void loadFieldA(
 			Object value,
 			int holderValKind,
 			Object holder,
-			String holderClass,
-			String fieldName,
-			String type,
-			String callerClass,
-			String callerMethod,
 			int callerValKind,
-			Object caller) {
-		System.err.println("loadFieldA(      "+
-				valAndValKindToString(holder, holderClass, holderValKind)+
-				" . "+fieldName+
-				" :: "+type+", "+
-				"value= "+value+", "+
-//				"holderClass="+holderClass+", "+
-//				"callerClass="+callerClass+", "+
-				"callerMethod="+callerMethod+", "+
-				"caller="+valAndValKindToString(caller, callerClass, callerValKind)+", "+
-				")");
+			Object caller,
+			int site) {
+		events.get().record(header(LOAD_FIELD_A, holderValKind, callerValKind, 0),
+				site, oid(holder), oid(caller), oid(value), 0, 0, 0);
 	}
 
 	////////////////////////////////////////////////////////////////
@@ -199,37 +309,21 @@ public class NativeInterface {
 			Object newVal,
 			int oldValKind,
 			Object oldVal,
-			int var,
-			String callerClass,
-			String callerMethod,
 			int callerValKind,
-			Object caller) {
-		System.err.println("storeVar(        "+
-				valAndValKindToString(newVal, "<UnknownClass>", newValKind)+", "+
-				"oldVal="+valAndValKindToString(oldVal, "<UnknownClass>", oldValKind)+", "+
-				"var="+var+", "+
-//				"callerClass="+callerClass+", "+
-				"callermethod="+callerMethod+", "+
-				"caller="+valAndValKindToString(caller, callerClass, callerValKind)+", "+
-				")");
+			Object caller,
+			int site) {
+		events.get().record(header(STORE_VAR, newValKind, callerValKind, oldValKind),
+				site, 0, oid(caller), oid(newVal), oid(oldVal), 0, 0);
 	}
 
 	public static void loadVar(
 			int valKind,
 			Object val,
-			int var,
-			//String type,
-			String callerClass,
-			String callerMethod,
 			int callerValKind,
-			Object caller) {
-		System.err.println("loadVar(         "+
-				"val="+valAndValKindToString(val, "<UnknownClass>", valKind)+", "+
-				"var="+var+", "+
-//				"callerClass="+callerClass+", "+
-				"callerMethod="+callerMethod+", "+
-				"caller="+valAndValKindToString(caller, callerClass, callerValKind)+", "+
-				")");
+			Object caller,
+			int site) {
+		events.get().record(header(LOAD_VAR, valKind, callerValKind, 0),
+				site, oid(val), oid(caller), 0, 0, 0, 0);
 	}
 
 	////////////////////////////////////////////////////////////////
@@ -238,36 +332,21 @@ public class NativeInterface {
 	public static void modify(
 			int calleeValKind,
 			Object callee,
-			String calleeClass,
-			String fieldName,
 			int callerValKind,
 			Object caller,
-			String callerClass) {
-		System.err.println("modify(          "+
-				valAndValKindToString(callee, calleeClass, calleeValKind)+
-				" . "+fieldName+", "+
-//				"calleeClass="+calleeClass+", "+
-				"caller="+valAndValKindToString(caller, callerClass, callerValKind)+", "+
-//				"callerClass="+callerClass+", "+
-				")");
+			int site) {
+		events.get().record(header(MODIFY, calleeValKind, callerValKind, 0),
+				site, oid(callee), oid(caller), 0, 0, 0, 0);
 	}
 
 	// an object READS a primitive field of another object
 	public static void read(
 			int calleeValKind,
 			Object callee,
-			String calleeClass,
-			String fieldName,
 			int callerValKind,
 			Object caller,
-			String callerClass) {
-		System.err.println("read(            "+
-				valAndValKindToString(callee, calleeClass, calleeValKind)+
-				" . "+fieldName+", "+
-//				"calleeClass="+calleeClass+", "+
-				"caller="+valAndValKindToString(caller, callerClass, callerValKind)+", "+
-//				"callerClass="+callerClass+
-				")");
+			int site) {
+		events.get().record(header(READ, calleeValKind, callerValKind, 0),
+				site, oid(callee), oid(caller), 0, 0, 0, 0);
 	}
 }
-
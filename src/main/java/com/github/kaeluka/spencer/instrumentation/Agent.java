@@ -0,0 +1,173 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Java agent entry point, for
+ * {@code -javaagent:spencer-instrumentation-<version>-agent.jar[=<options>]}.
+ * The agent jar puts itself on the boot class path, so that classes of every
+ * loader can see {@code NativeInterface}; it must therefore keep its name.
+ *
+ * The options are comma separated {@code key=value} pairs that are set as
+ * {@code org.spencer.instrumentation.<key>} system properties before the
+ * instrumentation reads its configuration, for instance
+ * {@code =variables.enable=false,sampling.fields=8}.
+ *
+ * Classes are transformed on whatever thread loads them, and any number of
+ * threads may do so at once.
+ *
+ * The instrumentation levels can be changed while the JVM runs, through
+ * {@link #setLevels(Levels)} or the {@link ControlMBean} (unless
+ * {@code control.enable=false}). Loaded classes that were instrumented at
+ * other levels are then retransformed.
+ *
+ * @author Stephan Brandauer
+ */
+public class Agent implements ClassFileTransformer {
+	private static final String PREFIX = "org.spencer.instrumentation.";
+
+	// set while the current thread is in transform, classes that get loaded
+	// by the instrumentation itself are not instrumented
+	private static final ThreadLocal<Boolean> transforming = ThreadLocal.withInitial(() -> false);
+
+	private static final int RETRANSFORM_BATCH = 256;
+	private static Instrumentation instrumentation = null;
+	// the levels that classes were last transformed at, by defining loader
+	// (null for the bootstrap loader) and name; excluded classes and classes
+	// that failed to transform are left out
+	private static final Map<ClassLoader, ConcurrentHashMap<String, Levels>> transformedAt =
+			Collections.synchronizedMap(new WeakHashMap<>());
+
+	/**
+	 * Never transform classes on the current thread, for background threads
+	 * of the instrumentation itself.
+	 */
+	static void exemptCurrentThread() {
+		transforming.set(true);
+	}
+
+	public static void premain(String options, Instrumentation inst) {
+		install(options, inst);
+	}
+
+	public static void agentmain(String options, Instrumentation inst) {
+		install(options, inst);
+	}
+
+	private static void install(String options, Instrumentation inst) {
+		if (options != null) {
+			for (String option : options.split(",")) {
+				final int eq = option.indexOf('=');
+				if (eq > 0) {
+					System.setProperty(PREFIX+option.substring(0, eq).trim(), option.substring(eq + 1).trim());
+				} else if (!option.trim().isEmpty()) {
+					System.err.println("spencer agent: ignoring option '"+option+"', expected key=value");
+				}
+			}
+		}
+		// load what the transformer needs before it is installed, it can not
+		// load it through itself (the thread locals in particular)
+		transforming.get();
+		HierarchyIndex.useLoader(null);
+		Instrument.getLevels();
+		instrumentation = inst;
+		inst.addTransformer(new Agent(), inst.isRetransformClassesSupported());
+		if (System.getProperty(PREFIX+"control.enable", "true").equals("true")) {
+			// starting JMX takes a while, and loads many classes
+			final Thread register = new Thread(() -> {
+				exemptCurrentThread();
+				Control.register();
+			}, "spencer-control");
+			register.setDaemon(true);
+			register.start();
+		}
+	}
+
+	/**
+	 * Changes the instrumentation levels, and retransforms the loaded classes
+	 * that were instrumented at other levels.
+	 *
+	 * @return the number of classes retransformed
+	 */
+	public static synchronized int setLevels(Levels levels) {
+		Instrument.setLevels(levels);
+		if (instrumentation == null || !instrumentation.isRetransformClassesSupported()) {
+			return 0;
+		}
+		final List<Class<?>> affected = new ArrayList<>();
+		for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+			final Levels was = transformedAt(c.getClassLoader()).get(c.getName().replace('.', '/'));
+			if (was != null && !was.equals(levels) && instrumentation.isModifiableClass(c)) {
+				affected.add(c);
+			}
+		}
+		int ret = 0;
+		for (int i = 0; i < affected.size(); i += RETRANSFORM_BATCH) {
+			final List<Class<?>> batch = affected.subList(i, Math.min(i + RETRANSFORM_BATCH, affected.size()));
+			try {
+				instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+				ret += batch.size();
+			} catch (Throwable t) {
+				// find the ones that can not be retransformed
+				for (Class<?> c : batch) {
+					try {
+						instrumentation.retransformClasses(c);
+						ret++;
+					} catch (Throwable e) {
+						Instrument.logError(c.getName(), e);
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	private static ConcurrentHashMap<String, Levels> transformedAt(ClassLoader loader) {
+		synchronized (transformedAt) {
+			return transformedAt.computeIfAbsent(loader, l -> new ConcurrentHashMap<>());
+		}
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className,
+			Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+			byte[] classfileBuffer) {
+		if (transforming.get()) {
+			return null;
+		}
+		transforming.set(true);
+		final ClassLoader previous = HierarchyIndex.useLoader(loader);
+		try {
+			final Levels levels = Instrument.getLevels();
+			final byte[] ret = Instrument.transform(classfileBuffer, levels);
+			final boolean failed = Instrument.takeFailure();
+			if (className != null) {
+				if (ret != classfileBuffer
+						|| (!failed && !Util.isClassNameBlacklisted(className))) {
+					// instrumented, or nothing to instrument at these levels
+					transformedAt(loader).put(className, levels);
+				} else {
+					// retransforming would not instrument it either
+					transformedAt(loader).remove(className);
+				}
+			}
+			// null tells the JVM that the class is unchanged
+			return (ret == classfileBuffer) ? null : ret;
+		} catch (Throwable t) {
+			// never let a failed transform break class loading
+			Instrument.logError(className, t);
+			return null;
+		} finally {
+			HierarchyIndex.useLoader(previous);
+			transforming.set(false);
+		}
+	}
+}
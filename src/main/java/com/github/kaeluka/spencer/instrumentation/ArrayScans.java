@@ -0,0 +1,373 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import com.github.kaeluka.spencer.instrumentation.runtime.EventKind;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds loops that scan an array, for
+ * {@code org.spencer.instrumentation.arrays.ranges=true}. Their element
+ * accesses are reported by one range event per kind of access when the loop
+ * ends, instead of one event per element. The loops looked at are those
+ * that javac emits for
+ *
+ * <pre>
+ * for (int i = LO; i &lt; a.length; i++) { ... a[i] ... }
+ * for (T x : a) { ... }
+ * </pre>
+ *
+ * with a constant {@code LO >= 0}. The body must be straight line code that
+ * can not throw: local variables, constants, arithmetic (without integer
+ * division), and loads and primitive stores of {@code a[i]}, for the same
+ * {@code a} that bounds the loop. Neither {@code i}, nor {@code a}, nor the
+ * cached length of a for each loop may be stored to in the body, and no
+ * jump may lead into the loop. Such a loop accesses exactly the elements
+ * {@code [LO, i)} when it ends. All other loops keep their hooks per element.
+ *
+ * Loops are found by the index of their instructions among the instructions
+ * of the method (labels, frames and line numbers do not count), methods with
+ * subroutines ({@code JSR}) are left alone.
+ *
+ * @author Stephan Brandauer
+ */
+final class ArrayScans extends ClassVisitor {
+	private String className;
+	// by method name + descriptor
+	private final Map<String, Map<Integer, Loop>> loops = new HashMap<>();
+
+	/**
+	 * One counted loop. Its instructions are given by their index in the
+	 * method.
+	 */
+	static final class Loop {
+		// the IF_ICMPGE at the head that leaves the loop
+		final int exit;
+		// the IINC; GOTO that ends the body
+		final int backEdge;
+		final int index;
+		final int array;
+		final int lo;
+		// the kind (EventKind) of each access of the array, by index
+		final Map<Integer, Integer> accesses;
+
+		Loop(int exit, int backEdge, int index, int array, int lo, Map<Integer, Integer> accesses) {
+			this.exit = exit;
+			this.backEdge = backEdge;
+			this.index = index;
+			this.array = array;
+			this.lo = lo;
+			this.accesses = accesses;
+		}
+	}
+
+	private ArrayScans() {
+		super(Opcodes.ASM5);
+	}
+
+	static ArrayScans scan(ClassReader reader) {
+		final ArrayScans ret = new ArrayScans();
+		reader.accept(ret, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return ret;
+	}
+
+	@Override
+	public void visit(int version, int access, String name, String signature,
+			String superName, String[] interfaces) {
+		this.className = name;
+	}
+
+	@Override
+	public MethodVisitor visitMethod(int access, String name, String desc,
+			String signature, String[] exceptions) {
+		return new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions) {
+			@Override
+			public void visitEnd() {
+				final Map<Integer, Loop> found = ArrayScans.this.findLoops(this);
+				if (!found.isEmpty()) {
+					ArrayScans.this.loops.put(name+desc, found);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the loops of the method, by the index of their exit jump
+	 */
+	Map<Integer, Loop> loops(String name, String desc) {
+		final Map<Integer, Loop> ret = this.loops.get(name+desc);
+		return (ret == null) ? Collections.emptyMap() : ret;
+	}
+
+	private Map<Integer, Loop> findLoops(MethodNode method) {
+		final List<AbstractInsnNode> insns = new ArrayList<>();
+		boolean candidate = false;
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn.getOpcode() == Opcodes.JSR) {
+				return Collections.emptyMap();
+			}
+			if (insn.getOpcode() == Opcodes.ARRAYLENGTH) {
+				candidate = true;
+			}
+			if (insn.getOpcode() >= 0) {
+				insns.add(insn);
+			}
+		}
+		if (!candidate) {
+			return Collections.emptyMap();
+		}
+		Frame<SourceValue>[] frames = null;
+		final Map<Integer, Loop> ret = new HashMap<>();
+		final Map<LabelNode, Integer> targets = jumpTargets(method);
+		for (int backEdge = 1; backEdge < insns.size(); ++backEdge) {
+			final AbstractInsnNode insn = insns.get(backEdge);
+			if (insn.getOpcode() != Opcodes.GOTO
+					|| method.instructions.indexOf(((JumpInsnNode) insn).label) > method.instructions.indexOf(insn)) {
+				continue;
+			}
+			if (frames == null) {
+				try {
+					frames = new Analyzer<>(new SourceInterpreter()).analyze(this.className, method);
+				} catch (AnalyzerException e) {
+					return Collections.emptyMap();
+				}
+			}
+			final Loop loop = this.matchLoop(method, insns, frames, targets, backEdge);
+			if (loop != null) {
+				ret.put(loop.exit, loop);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return how many jumps, switches and exception handlers lead to each
+	 *         label
+	 */
+	private static Map<LabelNode, Integer> jumpTargets(MethodNode method) {
+		final Map<LabelNode, Integer> ret = new HashMap<>();
+		for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if (insn instanceof JumpInsnNode) {
+				ret.merge(((JumpInsnNode) insn).label, 1, Integer::sum);
+			} else if (insn instanceof TableSwitchInsnNode) {
+				ret.merge(((TableSwitchInsnNode) insn).dflt, 1, Integer::sum);
+				for (LabelNode label : ((TableSwitchInsnNode) insn).labels) {
+					ret.merge(label, 1, Integer::sum);
+				}
+			} else if (insn instanceof LookupSwitchInsnNode) {
+				ret.merge(((LookupSwitchInsnNode) insn).dflt, 1, Integer::sum);
+				for (LabelNode label : ((LookupSwitchInsnNode) insn).labels) {
+					ret.merge(label, 1, Integer::sum);
+				}
+			}
+		}
+		for (TryCatchBlockNode block : method.tryCatchBlocks) {
+			ret.merge(block.handler, 1, Integer::sum);
+		}
+		return ret;
+	}
+
+	private Loop matchLoop(MethodNode method, List<AbstractInsnNode> insns,
+			Frame<SourceValue>[] frames, Map<LabelNode, Integer> targets, int backEdge) {
+		final LabelNode head = ((JumpInsnNode) insns.get(backEdge)).label;
+		// head: ILOAD i; (ALOAD a; ARRAYLENGTH | ILOAD n); IF_ICMPGE exit
+		int first = insns.indexOf(next(head));
+		// only the back edge jumps to the head
+		if (first < 2 || targets.get(head) != 1 || !isVar(insns.get(first), Opcodes.ILOAD)) {
+			return null;
+		}
+		final int index = var(insns.get(first));
+		final int exit;
+		final int array;
+		int length = -1;
+		if (isVar(insns.get(first + 1), Opcodes.ALOAD) && insns.get(first + 2).getOpcode() == Opcodes.ARRAYLENGTH) {
+			array = var(insns.get(first + 1));
+			exit = first + 3;
+		} else if (isVar(insns.get(first + 1), Opcodes.ILOAD)) {
+			length = var(insns.get(first + 1));
+			array = this.lengthOf(method, frames, length, insns.get(first));
+			exit = first + 2;
+		} else {
+			return null;
+		}
+		if (array < 0 || exit >= backEdge - 1 || insns.get(exit).getOpcode() != Opcodes.IF_ICMPGE
+				|| method.instructions.indexOf(((JumpInsnNode) insns.get(exit)).label)
+						< method.instructions.indexOf(insns.get(backEdge))) {
+			return null;
+		}
+		// the body ends with IINC i 1
+		final AbstractInsnNode step = insns.get(backEdge - 1);
+		if (!(step instanceof IincInsnNode) || ((IincInsnNode) step).var != index
+				|| ((IincInsnNode) step).incr != 1) {
+			return null;
+		}
+		// before the head: push LO; ISTORE i
+		final int lo = constant(insns.get(first - 2));
+		if (lo < 0 || !isVar(insns.get(first - 1), Opcodes.ISTORE) || var(insns.get(first - 1)) != index) {
+			return null;
+		}
+		// nothing jumps into the loop
+		for (AbstractInsnNode insn = head.getNext(); insn != insns.get(backEdge); insn = insn.getNext()) {
+			if (insn instanceof LabelNode && targets.containsKey(insn)) {
+				return null;
+			}
+		}
+		final Map<Integer, Integer> accesses = new HashMap<>();
+		for (int i = exit + 1; i < backEdge - 1; ++i) {
+			final AbstractInsnNode insn = insns.get(i);
+			final Frame<SourceValue> frame = frames[method.instructions.indexOf(insn)];
+			if (frame == null) {
+				return null;
+			}
+			final int opcode = insn.getOpcode();
+			if (insn instanceof VarInsnNode || insn instanceof IincInsnNode) {
+				final int var = (insn instanceof VarInsnNode) ? var(insn) : ((IincInsnNode) insn).var;
+				final boolean isStore = (opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE) || opcode == Opcodes.IINC;
+				final int size = (opcode == Opcodes.LSTORE || opcode == Opcodes.DSTORE) ? 2 : 1;
+				if (opcode == Opcodes.RET || isStore && (covers(var, size, index) || covers(var, size, array)
+						|| covers(var, size, length))) {
+					return null;
+				}
+			} else if (opcode >= Opcodes.IALOAD && opcode <= Opcodes.SALOAD) {
+				if (!isElement(method, frames, frame, 1, array, index)) {
+					return null;
+				}
+				accesses.put(i, (opcode == Opcodes.AALOAD) ? EventKind.LOAD_ARRAY_A : EventKind.READ_ARRAY);
+			} else if (opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE && opcode != Opcodes.AASTORE) {
+				if (!isElement(method, frames, frame, 2, array, index)) {
+					return null;
+				}
+				accesses.put(i, EventKind.MODIFY_ARRAY);
+			} else if (!cannotThrow(insn)) {
+				return null;
+			}
+		}
+		if (accesses.isEmpty()) {
+			return null;
+		}
+		return new Loop(exit, backEdge, index, array, lo, accesses);
+	}
+
+	/**
+	 * @return the variable holding the array whose length is in the
+	 *         variable {@code length} at {@code at}, or -1
+	 */
+	private int lengthOf(MethodNode method, Frame<SourceValue>[] frames, int length, AbstractInsnNode at) {
+		// ALOAD a; ARRAYLENGTH; ISTORE n
+		final Frame<SourceValue> atFrame = frames[method.instructions.indexOf(at)];
+		final AbstractInsnNode store = atFrame == null ? null : only(atFrame.getLocal(length));
+		final Frame<SourceValue> storeFrame = store == null ? null : frames[method.instructions.indexOf(store)];
+		final AbstractInsnNode arraylength = storeFrame == null ? null : only(top(storeFrame, 0));
+		if (arraylength == null || arraylength.getOpcode() != Opcodes.ARRAYLENGTH) {
+			return -1;
+		}
+		final Frame<SourceValue> lengthFrame = frames[method.instructions.indexOf(arraylength)];
+		final AbstractInsnNode load = only(top(lengthFrame, 0));
+		if (load == null || !isVar(load, Opcodes.ALOAD)) {
+			return -1;
+		}
+		// the array variable still holds the same value at the head
+		final int array = var(load);
+		final Set<AbstractInsnNode> then = frames[method.instructions.indexOf(load)].getLocal(array).insns;
+		final Set<AbstractInsnNode> now = atFrame.getLocal(array).insns;
+		return (then.size() <= 1 && then.equals(now)) ? array : -1;
+	}
+
+	/**
+	 * @return true if the array and index under the top {@code depth} stack
+	 *         values are loaded from the given variables
+	 */
+	private static boolean isElement(MethodNode method, Frame<SourceValue>[] frames,
+			Frame<SourceValue> frame, int depth, int array, int index) {
+		final AbstractInsnNode arrayLoad = only(top(frame, depth));
+		final AbstractInsnNode indexLoad = only(top(frame, depth - 1));
+		if (arrayLoad != null && arrayLoad == indexLoad && arrayLoad.getOpcode() == Opcodes.DUP2) {
+			// copies of the two values on top, as in a[i]++
+			return isElement(method, frames, frames[method.instructions.indexOf(arrayLoad)], 1, array, index);
+		}
+		return arrayLoad != null && isVar(arrayLoad, Opcodes.ALOAD) && var(arrayLoad) == array
+				&& indexLoad != null && isVar(indexLoad, Opcodes.ILOAD) && var(indexLoad) == index;
+	}
+
+	private static boolean cannotThrow(AbstractInsnNode insn) {
+		final int opcode = insn.getOpcode();
+		if (insn instanceof InsnNode) {
+			return (opcode >= Opcodes.ACONST_NULL && opcode <= Opcodes.DCONST_1)
+					|| (opcode >= Opcodes.POP && opcode <= Opcodes.DCMPG
+							&& opcode != Opcodes.IDIV && opcode != Opcodes.LDIV
+							&& opcode != Opcodes.IREM && opcode != Opcodes.LREM);
+		} else if (insn instanceof IntInsnNode) {
+			return opcode != Opcodes.NEWARRAY;
+		} else if (insn instanceof LdcInsnNode) {
+			final Object cst = ((LdcInsnNode) insn).cst;
+			return cst instanceof Number || cst instanceof String;
+		}
+		return false;
+	}
+
+	private static SourceValue top(Frame<SourceValue> frame, int depth) {
+		return frame.getStack(frame.getStackSize() - 1 - depth);
+	}
+
+	private static AbstractInsnNode only(SourceValue value) {
+		return (value.insns.size() == 1) ? value.insns.iterator().next() : null;
+	}
+
+	private static boolean covers(int var, int size, int other) {
+		return other >= var && other < var + size;
+	}
+
+	private static int constant(AbstractInsnNode insn) {
+		final int opcode = insn.getOpcode();
+		if (opcode >= Opcodes.ICONST_0 && opcode <= Opcodes.ICONST_5) {
+			return opcode - Opcodes.ICONST_0;
+		} else if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+			return ((IntInsnNode) insn).operand;
+		}
+		return -1;
+	}
+
+	private static boolean isVar(AbstractInsnNode insn, int opcode) {
+		return insn.getOpcode() == opcode;
+	}
+
+	private static int var(AbstractInsnNode insn) {
+		return ((VarInsnNode) insn).var;
+	}
+
+	/**
+	 * @return the next instruction that is not a label, frame or line number
+	 */
+	private static AbstractInsnNode next(AbstractInsnNode insn) {
+		AbstractInsnNode ret = insn.getNext();
+		while (ret != null && ret.getOpcode() < 0) {
+			ret = ret.getNext();
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,135 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.util.TraceClassVisitor;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a readable listing of every instrumented class into one zip
+ * archive ({@code org.spencer.instrumentation.tracing.file}, by default
+ * {@code log/output/bytecode.zip}), as {@code <class>.bytecode} entries.
+ * Listings are made and compressed on a background thread; class loading
+ * only waits when that thread falls far behind. If
+ * {@code org.spencer.instrumentation.tracing.filter} is set, only classes
+ * that match one of its comma separated {@link ClassFilter} rules are
+ * dumped. The archive is complete once the JVM has shut down.
+ *
+ * @author Stephan Brandauer
+ */
+public final class BytecodeDumper {
+	private static final int QUEUE = 1 << 10;
+	private static final long SHUTDOWN_WAIT_MS = 10_000;
+
+	private static final class Dump {
+		final String className;
+		final byte[] bytes;
+
+		Dump(String className, byte[] bytes) {
+			this.className = className;
+			this.bytes = bytes;
+		}
+	}
+
+	// tells the worker to finish the archive
+	private static final Dump END = new Dump(null, null);
+
+	private final File file;
+	private final ClassFilter filter;
+	private final BlockingQueue<Dump> queue = new ArrayBlockingQueue<>(QUEUE);
+	private final Thread worker;
+	// classes can be dumped more than once (several loaders, retransforms)
+	private final Map<String, Integer> dumped = new HashMap<>();
+
+	public BytecodeDumper(File file, ClassFilter filter) {
+		this.file = file;
+		this.filter = filter;
+		this.worker = new Thread(this::run, "spencer-bytecode-dump");
+		this.worker.setDaemon(true);
+		this.worker.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "spencer-bytecode-dump-close"));
+	}
+
+	public static BytecodeDumper fromProperties() {
+		final String filter = System.getProperty("org.spencer.instrumentation.tracing.filter", "");
+		return new BytecodeDumper(
+				new File(System.getProperty("org.spencer.instrumentation.tracing.file", "log/output/bytecode.zip")),
+				new ClassFilter(
+						ClassFilter.split(filter),
+						Collections.emptyList()));
+	}
+
+	/**
+	 * Queues the class for dumping, if it matches the filter.
+	 */
+	public void dump(String className, byte[] classFile) {
+		if (!this.filter.accepts(className) || !this.worker.isAlive()) {
+			return;
+		}
+		try {
+			this.queue.put(new Dump(className, classFile));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		// the classes needed for dumping must not be instrumented (and dumped)
+		// themselves
+		Agent.exemptCurrentThread();
+		if (this.file.getAbsoluteFile().getParentFile() != null) {
+			this.file.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)))) {
+			Dump dump;
+			while ((dump = this.queue.take()) != END) {
+				zip.putNextEntry(new ZipEntry(this.entryName(dump.className)));
+				zip.write(listing(dump.bytes).getBytes(StandardCharsets.UTF_8));
+				zip.closeEntry();
+			}
+		} catch (IOException e) {
+			System.err.println("spencer: can not write bytecode dumps to "+this.file+": "+e);
+			this.queue.clear();
+		} catch (InterruptedException e) {
+			// the zip is closed, but without the rest of the queue
+		}
+	}
+
+	private String entryName(String className) {
+		final int n = this.dumped.merge(className, 1, Integer::sum);
+		return (n == 1) ? className+".bytecode" : className+"."+n+".bytecode";
+	}
+
+	private static String listing(byte[] classFile) {
+		final StringWriter ret = new StringWriter(classFile.length * 4);
+		new ClassReader(classFile).accept(new TraceClassVisitor(new PrintWriter(ret)), 0);
+		return ret.toString();
+	}
+
+	/**
+	 * Writes out what is queued and finishes the archive.
+	 */
+	public void close() {
+		try {
+			if (this.worker.isAlive() && this.queue.offer(END, SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+				this.worker.join(SHUTDOWN_WAIT_MS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
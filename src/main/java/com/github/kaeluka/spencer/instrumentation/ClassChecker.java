@@ -0,0 +1,174 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the instrumented classes through {@link CheckClassAdapter}, as
+ * configured by {@code org.spencer.instrumentation.checking.*}:
+ *
+ * <ul>
+ * <li>{@code mode=inline} (the default) checks while the class is written,
+ * and a class that fails is loaded uninstrumented</li>
+ * <li>{@code mode=deferred} checks a copy of the instrumented class on a
+ * background thread, after it was loaded</li>
+ * <li>{@code sample=N} checks only about one in N classes, chosen by name so
+ * that the same classes are checked in every run</li>
+ * </ul>
+ *
+ * All failures are written to a report ({@code checking.report}, by default
+ * {@code log/verification.txt}) when the JVM shuts down.
+ *
+ * @author Stephan Brandauer
+ */
+public final class ClassChecker {
+	private static final int QUEUE = 1 << 10;
+	private static final long SHUTDOWN_WAIT_MS = 30_000;
+
+	private final boolean deferred;
+	private final int sample;
+	private final File report;
+	private final AtomicInteger checked = new AtomicInteger();
+	private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+	private final BlockingQueue<Object[]> queue;
+	private final Thread worker;
+	// tells the worker to stop
+	private static final Object[] END = new Object[0];
+
+	public ClassChecker(boolean deferred, int sample, File report) {
+		this.deferred = deferred;
+		this.sample = Math.max(sample, 1);
+		this.report = report;
+		if (deferred) {
+			this.queue = new ArrayBlockingQueue<>(QUEUE);
+			this.worker = new Thread(this::run, "spencer-class-check");
+			this.worker.setDaemon(true);
+			this.worker.start();
+		} else {
+			this.queue = null;
+			this.worker = null;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "spencer-class-check-report"));
+	}
+
+	/**
+	 * @return the configured checker, or null if checking is off
+	 */
+	public static ClassChecker fromProperties() {
+		if (!Instrument.checking) {
+			return null;
+		}
+		final String mode = System.getProperty("org.spencer.instrumentation.checking.mode", "inline");
+		if (!mode.equals("inline") && !mode.equals("deferred")) {
+			throw new IllegalArgumentException("unknown checking mode '"+mode+"', expected inline or deferred");
+		}
+		return new ClassChecker(mode.equals("deferred"),
+				Integer.getInteger("org.spencer.instrumentation.checking.sample", 1),
+				new File(System.getProperty("org.spencer.instrumentation.checking.report", "log/verification.txt")));
+	}
+
+	private boolean isSampled(String className) {
+		return this.sample == 1 || Math.floorMod(className.hashCode(), this.sample) == 0;
+	}
+
+	/**
+	 * @return the visitor to write the class through: a checking one if the
+	 *         class is checked inline
+	 */
+	public ClassVisitor inline(String className, ClassVisitor cv) {
+		if (this.deferred || !this.isSampled(className)) {
+			return cv;
+		}
+		this.checked.incrementAndGet();
+		return new CheckClassAdapter(cv, false);
+	}
+
+	/**
+	 * Reports an inline check that failed.
+	 */
+	public void failed(String className, RuntimeException ex) {
+		this.failures.add(className+": "+ex);
+	}
+
+	/**
+	 * Queues an instrumented class for checking, if checks are deferred.
+	 */
+	public void afterTransform(String className, byte[] classFile) {
+		if (!this.deferred || !this.isSampled(className) || !this.worker.isAlive()) {
+			return;
+		}
+		try {
+			this.queue.put(new Object[] { className, classFile });
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		Agent.exemptCurrentThread();
+		try {
+			Object[] job;
+			while ((job = this.queue.take()) != END) {
+				final String className = (String) job[0];
+				this.checked.incrementAndGet();
+				try {
+					new ClassReader((byte[]) job[1]).accept(
+							new CheckClassAdapter(new ClassVisitor(Opcodes.ASM5) {}, false), 0);
+				} catch (RuntimeException ex) {
+					this.failed(className, ex);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop
+		}
+	}
+
+	public List<String> getFailures() {
+		return new ArrayList<>(this.failures);
+	}
+
+	/**
+	 * Finishes queued checks and writes the report.
+	 */
+	public void close() {
+		try {
+			if (this.worker != null && this.worker.isAlive()
+					&& this.queue.offer(END, SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+				this.worker.join(SHUTDOWN_WAIT_MS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (this.report.getAbsoluteFile().getParentFile() != null) {
+			this.report.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		final List<String> failures = this.getFailures();
+		try (PrintWriter out = new PrintWriter(this.report)) {
+			out.println(this.checked.get()+" classes checked ("+(this.deferred ? "deferred" : "inline")
+					+ ", 1 in "+this.sample+"), "+failures.size()+" failed");
+			for (String failure : failures) {
+				out.println(failure);
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("spencer: can not write the verification report to "+this.report+": "+e);
+		}
+		if (!failures.isEmpty()) {
+			System.err.println("spencer: "+failures.size()+" instrumented classes failed verification, see "+this.report);
+		}
+	}
+}
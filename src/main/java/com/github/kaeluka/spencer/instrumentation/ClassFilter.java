@@ -0,0 +1,207 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which classes get instrumented. A class is instrumented if it
+ * matches no exclude rule and, if there are any include rules, at least one
+ * include rule. Rules are given as internal or binary class names:
+ *
+ * <ul>
+ * <li>{@code com/acme/} or {@code com.acme.**}: everything in the package and
+ * its sub-packages</li>
+ * <li>{@code com/acme/*Test}: a glob, {@code *} and {@code ?} match within a
+ * package, {@code **} matches across packages</li>
+ * <li>{@code com/acme/Foo}: exactly that class and its nested classes</li>
+ * </ul>
+ *
+ * Prefix and exact rules are compiled into a trie, globs into a single regular
+ * expression, and every decision is cached per class name.
+ *
+ * @author Stephan Brandauer
+ */
+public final class ClassFilter {
+	/**
+	 * Classes that must never be instrumented, as the hooks (or the JVM's
+	 * bootstrap) depend on them.
+	 */
+	public static final List<String> DEFAULT_EXCLUDES = Collections.unmodifiableList(Arrays.asList(
+			"java/lang/Object",
+			"java/lang/Class",
+			"java/lang/ClassLoader",
+			"java/lang/Thread*",
+			"java/lang/invoke/",
+			"java/lang/ref/",
+			"java/security/AccessControlContext",
+			"NativeInterface",
+			"com/github/kaeluka/spencer/instrumentation/runtime/",
+			"java/util/LinkedList$ListItr",
+			"java/lang/Shutdown",
+			"java/lang/System",
+			"java/lang/String",
+			"java/lang/Float",
+			"sun/nio/cs/",
+			"java/io/File*",     // happens with static field instr in ctors
+			"java/io/PrintStream",
+			"java/util/Hashtable",
+			"sun/util/PreHashedMap",
+			"sun/launcher/",
+			"java/util/concurrent/" // used by the event buffers
+	));
+
+	private final Rules includes;
+	private final Rules excludes;
+	private final ConcurrentHashMap<String, Boolean> cache = new ConcurrentHashMap<>();
+
+	public ClassFilter(List<String> includes, List<String> excludes) {
+		this.includes = new Rules(includes);
+		this.excludes = new Rules(excludes);
+	}
+
+	/**
+	 * Reads the comma separated rules in {@code org.spencer.instrumentation.include}
+	 * and {@code org.spencer.instrumentation.exclude}. The excludes are
+	 * added to the {@link #DEFAULT_EXCLUDES}.
+	 */
+	public static ClassFilter fromProperties() {
+		final List<String> excludes = new ArrayList<>(DEFAULT_EXCLUDES);
+		excludes.addAll(split(System.getProperty("org.spencer.instrumentation.exclude", "")));
+		return new ClassFilter(
+				split(System.getProperty("org.spencer.instrumentation.include", "")),
+				excludes);
+	}
+
+	static List<String> split(String rules) {
+		final List<String> ret = new ArrayList<>();
+		for (String rule : rules.split(",")) {
+			if (!rule.trim().isEmpty()) {
+				ret.add(rule.trim());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @param className
+	 *            the internal name of the class, like {@code java/lang/Object}
+	 */
+	public boolean accepts(String className) {
+		final Boolean cached = this.cache.get(className);
+		if (cached != null) {
+			return cached;
+		}
+		final boolean accepted = !this.excludes.matches(className)
+				&& (this.includes.isEmpty() || this.includes.matches(className));
+		this.cache.put(className, accepted);
+		return accepted;
+	}
+
+	private static final class Node {
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		// matches every name that continues here
+		boolean prefix = false;
+		// matches the name that ends here, and its nested classes
+		boolean exact = false;
+
+		Node child(char c) {
+			for (int i = 0; i < this.keys.length; ++i) {
+				if (this.keys[i] == c) {
+					return this.children[i];
+				}
+			}
+			return null;
+		}
+
+		Node addChild(char c) {
+			Node child = this.child(c);
+			if (child == null) {
+				child = new Node();
+				this.keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+				this.children = Arrays.copyOf(this.children, this.children.length + 1);
+				this.keys[this.keys.length - 1] = c;
+				this.children[this.children.length - 1] = child;
+			}
+			return child;
+		}
+	}
+
+	private static final class Rules {
+		private final Node trie = new Node();
+		private final Pattern globs;
+		private final boolean empty;
+
+		Rules(List<String> rules) {
+			final StringBuilder globs = new StringBuilder();
+			for (String rule : rules) {
+				rule = rule.replace('.', '/');
+				if (rule.endsWith("/**")) {
+					this.add(rule.substring(0, rule.length() - 2)).prefix = true;
+				} else if (rule.endsWith("/")) {
+					this.add(rule).prefix = true;
+				} else if (rule.indexOf('*') >= 0 || rule.indexOf('?') >= 0) {
+					if (globs.length() > 0) {
+						globs.append('|');
+					}
+					globs.append("(?:").append(globToRegex(rule)).append(')');
+				} else {
+					this.add(rule).exact = true;
+				}
+			}
+			this.globs = (globs.length() > 0) ? Pattern.compile(globs.toString()) : null;
+			this.empty = rules.isEmpty();
+		}
+
+		private Node add(String rule) {
+			Node node = this.trie;
+			for (int i = 0; i < rule.length(); ++i) {
+				node = node.addChild(rule.charAt(i));
+			}
+			return node;
+		}
+
+		private static String globToRegex(String glob) {
+			final StringBuilder regex = new StringBuilder();
+			for (int i = 0; i < glob.length(); ++i) {
+				final char c = glob.charAt(i);
+				if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else if (c == '*') {
+					regex.append("[^/]*");
+				} else if (c == '?') {
+					regex.append("[^/]");
+				} else {
+					if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+						regex.append('\\');
+					}
+					regex.append(c);
+				}
+			}
+			return regex.toString();
+		}
+
+		boolean isEmpty() {
+			return this.empty;
+		}
+
+		boolean matches(String name) {
+			Node node = this.trie;
+			for (int i = 0; i < name.length() && node != null; ++i) {
+				if (node.prefix || (node.exact && name.charAt(i) == '$')) {
+					return true;
+				}
+				node = node.child(name.charAt(i));
+			}
+			if (node != null && (node.prefix || node.exact)) {
+				return true;
+			}
+			return this.globs != null && this.globs.matcher(name).matches();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import com.github.kaeluka.spencer.instrumentation.runtime.EventKind;
+import com.github.kaeluka.spencer.instrumentation.runtime.HookLinker;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * @author Stephan Brandauer
+ */
+public class Control implements ControlMBean {
+	public static final String NAME = "com.github.kaeluka.spencer:type=Instrumentation";
+
+	static void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new Control(), new ObjectName(NAME));
+		} catch (JMException e) {
+			System.err.println("spencer agent: can not register "+NAME+": "+e);
+		}
+	}
+
+	@Override
+	public boolean isFields() {
+		return Instrument.getLevels().fields;
+	}
+
+	@Override
+	public void setFields(boolean fields) {
+		final Levels levels = Instrument.getLevels();
+		this.setLevels(fields, levels.variables, levels.methods);
+	}
+
+	@Override
+	public boolean isVariables() {
+		return Instrument.getLevels().variables;
+	}
+
+	@Override
+	public void setVariables(boolean variables) {
+		final Levels levels = Instrument.getLevels();
+		this.setLevels(levels.fields, variables, levels.methods);
+	}
+
+	@Override
+	public boolean isMethods() {
+		return Instrument.getLevels().methods;
+	}
+
+	@Override
+	public void setMethods(boolean methods) {
+		final Levels levels = Instrument.getLevels();
+		this.setLevels(levels.fields, levels.variables, methods);
+	}
+
+	@Override
+	public int setLevels(boolean fields, boolean variables, boolean methods) {
+		return Agent.setLevels(new Levels(fields, variables, methods));
+	}
+
+	@Override
+	public String getStatistics() {
+		return Instrument.statistics();
+	}
+
+	@Override
+	public String getBackends() {
+		final StringBuilder ret = new StringBuilder();
+		for (int kind = EventKind.LOAD_FIELD_A; kind <= EventKind.ARRAY_RANGE; ++kind) {
+			if (ret.length() > 0) {
+				ret.append(", ");
+			}
+			ret.append(EventKind.name(kind)).append('=').append(HookLinker.getBackend(kind).name().toLowerCase());
+		}
+		return ret.toString();
+	}
+
+	@Override
+	public void setBackend(String kind, String backend) {
+		final int k = EventKind.byName(kind);
+		if (k < 0) {
+			throw new IllegalArgumentException("unknown event kind '"+kind+"'");
+		}
+		HookLinker.setBackend(k, HookLinker.Backend.valueOf(backend.toUpperCase()));
+	}
+}
@@ -0,0 +1,47 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+/**
+ * JMX interface of the agent, registered as
+ * {@code com.github.kaeluka.spencer:type=Instrumentation}. Changing a level
+ * retransforms the affected classes before returning.
+ *
+ * @author Stephan Brandauer
+ */
+public interface ControlMBean {
+	boolean isFields();
+
+	void setFields(boolean fields);
+
+	boolean isVariables();
+
+	void setVariables(boolean variables);
+
+	boolean isMethods();
+
+	void setMethods(boolean methods);
+
+	/**
+	 * Changes all levels at once.
+	 *
+	 * @return the number of classes retransformed
+	 */
+	int setLevels(boolean fields, boolean variables, boolean methods);
+
+	String getStatistics();
+
+	/**
+	 * @return the backend of the invokedynamic hooks of every event kind
+	 */
+	String getBackends();
+
+	/**
+	 * Changes the backend of the invokedynamic hooks of one event kind, see
+	 * {@link com.github.kaeluka.spencer.instrumentation.runtime.HookLinker}.
+	 *
+	 * @param kind
+	 *            the name of the kind, for instance loadVar
+	 * @param backend
+	 *            record, count or off
+	 */
+	void setBackend(String kind, String backend);
+}
@@ -5,16 +5,19 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.AdviceAdapter;
 import org.objectweb.asm.commons.TryCatchBlockSorter;
+import org.objectweb.asm.tree.MethodNode;
 
-import java.util.HashSet;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * A method visitor that inserts source code ({@link onExit}) every time a method exits.
  * This also deals with uncaught exceptions by wrapping all instrumented methods in a
- * try catch block that executes the code generated by {@code onExit} and then rethrows 
- * he exception. For technical reasons, this class does not instrument constructors.
- * 
+ * try catch block that executes the code generated by {@code onExit} and then rethrows
+ * he exception. In constructors, only the code after the {@code super(...)} call is
+ * wrapped. Code generated by {@code onEntry} runs before the try block, so that
+ * local variables it initialises can be used in {@code onExit}.
+ *
  * @author Stephan Brandauer
  *
  */
@@ -24,56 +27,73 @@ public final class ExitHandler extends AdviceAdapter implements Opcodes {
 	private final Label endTryLabel = new Label();
 	private final Label startHandlerLabel = new Label();
 	private final Label endHandlerLabel = new Label();
-	
+
+	private final Consumer<ExitHandler> onEntry;
 	private final BiConsumer<ExitHandler,String> onExit;
 	private int lastVisitedLine;
-	private final HashSet<Integer> exitedOnLines = new HashSet<>();
+	// the buffered method, which visits this, all its try catch blocks must
+	// come before ours
+	private MethodNode method;
+	private int visitedTryCatchBlocks = 0;
+	private boolean entered = false;
+	private boolean inTry = false;
 
 	public static MethodVisitor mk(final MethodVisitor mv, final int access,
 			final String name, final String desc, final String signature,
 			final String[] exceptions, BiConsumer<ExitHandler, String> onExit) {
-		
-		return new TryCatchBlockSorter(
-				new ExitHandler(mv, access, name, desc, signature, exceptions, onExit), 
+		return mk(mv, access, name, desc, signature, exceptions, entry -> {}, onExit);
+	}
+
+	public static MethodVisitor mk(final MethodVisitor mv, final int access,
+			final String name, final String desc, final String signature,
+			final String[] exceptions, Consumer<ExitHandler> onEntry,
+			BiConsumer<ExitHandler, String> onExit) {
+		final ExitHandler handler = new ExitHandler(mv, access, name, desc, signature, exceptions,
+				onEntry, onExit);
+		handler.method = new TryCatchBlockSorter(
+				handler,
 				access,
 				name,
 				desc,
 				signature,
 				exceptions);
+		return handler.method;
 	}
-	
+
 	private ExitHandler(final MethodVisitor mv, final int access,
 			final String name, final String desc, final String signature,
-			final String[] exceptions, BiConsumer<ExitHandler, String> onExit) {
+			final String[] exceptions, Consumer<ExitHandler> onEntry,
+			BiConsumer<ExitHandler, String> onExit) {
 		super(ASM5, mv, access,
 				name, desc);
+		this.onEntry = onEntry;
 		this.onExit = onExit;
 	}
 
 	@Override
-	public void visitCode() {
-		super.visitCode();
-		super.visitLabel(startTryLabel);
+	protected void onMethodEnter() {
+		// for constructors, right after the super(...) call
+		this.entered = true;
+		this.beginTry();
 	}
 
-	/* (non-Javadoc)
-	 * @see org.objectweb.asm.tree.MethodNode#visitInsn(int)
-	 */
 	@Override
-	public void visitInsn(int opcode) {
-		switch (opcode) {
-		case RETURN:
-		case IRETURN:
-		case FRETURN:
-		case ARETURN:
-		case LRETURN:
-		case DRETURN:
-			onMethodExit(opcode);
-			break;
+	public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+		super.visitTryCatchBlock(start, end, handler, type);
+		this.visitedTryCatchBlocks++;
+		this.beginTry();
+	}
+
+	private void beginTry() {
+		if (this.entered && !this.inTry
+				&& this.visitedTryCatchBlocks == this.method.tryCatchBlocks.size()) {
+			this.inTry = true;
+			this.onEntry.accept(this);
+			super.visitTryCatchBlock(startTryLabel, endTryLabel, startHandlerLabel, null);
+			super.visitLabel(startTryLabel);
 		}
-		super.visitInsn(opcode);
 	}
-	
+
 	@Override
 	public void visitLineNumber(int line, Label start) {
 		this.lastVisitedLine = line;
@@ -86,20 +106,19 @@ public final class ExitHandler extends AdviceAdapter implements Opcodes {
 			//We'll catch this in the handler if needed!
 			return;
 		}
-		if (!this.exitedOnLines.contains(this.lastVisitedLine)) {
-			this.onExit.accept(this, "normal exit - "+opcode+" "+this.lastVisitedLine);
-			this.exitedOnLines.add(this.lastVisitedLine);
-		}
+		this.onExit.accept(this, "normal exit - "+opcode+" "+this.lastVisitedLine);
 	}
 
 	@Override
 	public void visitMaxs(int locals, int maxs) {
-		visitLabel(endTryLabel);
-		visitJumpInsn(GOTO, endHandlerLabel);
-		visitLabel(startHandlerLabel);
-		this.onExit.accept(this, "exception being thrown");
-		visitInsn(ATHROW);
-		visitLabel(endHandlerLabel);
+		if (this.inTry) {
+			visitLabel(endTryLabel);
+			visitJumpInsn(GOTO, endHandlerLabel);
+			visitLabel(startHandlerLabel);
+			this.onExit.accept(this, "exception being thrown");
+			visitInsn(ATHROW);
+			visitLabel(endHandlerLabel);
+		}
 		super.visitMaxs(locals, maxs);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,26 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * A {@link ClassWriter} that computes frames from a {@link HierarchyIndex}
+ * instead of loading classes. Loading classes from inside a transform is
+ * slow, can run static initializers too early, and can end in a class
+ * circularity error.
+ *
+ * @author Stephan Brandauer
+ */
+public class HierarchyClassWriter extends ClassWriter {
+	private final HierarchyIndex index;
+
+	public HierarchyClassWriter(ClassReader classReader, int flags, HierarchyIndex index) {
+		super(classReader, flags);
+		this.index = index;
+	}
+
+	@Override
+	protected String getCommonSuperClass(String type1, String type2) {
+		return this.index.getCommonSuperClass(type1, type2);
+	}
+}
@@ -0,0 +1,321 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The superclass and interfaces of every class that the instrumentation has
+ * come across, for computing stack map frames without loading classes.
+ *
+ * Classes that pass through the instrumentation are added as they are seen.
+ * Others are looked up lazily: their class file is read as a resource and
+ * only its header is parsed, so this works for any class file version and
+ * never runs a static initializer. The index lives as long as the JVM and is
+ * shared by all transforms.
+ *
+ * Classes are kept per class loader: a class that is transformed belongs to
+ * the loader that defines it, one that is looked up belongs to the topmost
+ * loader (of the loader of the class being transformed and its parents) that
+ * finds its class file. A class that can not be found is not remembered, and
+ * makes the lookup throw a {@link TypeNotPresentException}, so that the
+ * transform keeps the original class rather than compute wrong frames.
+ *
+ * @author Stephan Brandauer
+ */
+public final class HierarchyIndex {
+	private static final HierarchyIndex shared = new HierarchyIndex();
+
+	private static final class Info {
+		final String name;
+		final String superName;
+		final String[] interfaces;
+		final boolean isInterface;
+
+		Info(String name, String superName, String[] interfaces, boolean isInterface) {
+			this.name = name;
+			this.superName = superName;
+			this.interfaces = interfaces;
+			this.isInterface = isInterface;
+		}
+
+		String describe() {
+			return this.superName+";"+String.join(",", this.interfaces)+";"+this.isInterface;
+		}
+	}
+
+	// by loader, the classes that were added without a loader, and the
+	// classes of the bootstrap loader are under null
+	private final Map<ClassLoader, ConcurrentHashMap<String, Info>> infos =
+			Collections.synchronizedMap(new WeakHashMap<>());
+
+	// the loader of the class that the current thread transforms
+	private static final ThreadLocal<ClassLoader> loader = new ThreadLocal<>();
+	// the classes that the current thread looked up since startRecording,
+	// with what was found (see describe)
+	private static final ThreadLocal<Map<String, String>> consulted = new ThreadLocal<>();
+
+	public static HierarchyIndex shared() {
+		return shared;
+	}
+
+	/**
+	 * Look up classes through the given loader (before the context class
+	 * loader) on the current thread.
+	 *
+	 * @return the loader used before, to be restored when done
+	 */
+	public static ClassLoader useLoader(ClassLoader classLoader) {
+		final ClassLoader ret = loader.get();
+		loader.set(classLoader);
+		return ret;
+	}
+
+	/**
+	 * Adds a class of the loader that the current thread uses (see
+	 * {@link #useLoader(ClassLoader)}).
+	 */
+	/**
+	 * Remembers the classes that the current thread looks up from now on,
+	 * until {@link #stopRecording()}.
+	 */
+	public static void startRecording() {
+		consulted.set(new TreeMap<>());
+	}
+
+	/**
+	 * @return the classes that the current thread looked up since
+	 *         {@link #startRecording()}, with their {@link #describe(String)}
+	 */
+	public static Map<String, String> stopRecording() {
+		final Map<String, String> ret = consulted.get();
+		consulted.remove();
+		return (ret == null) ? Collections.emptyMap() : ret;
+	}
+
+	/**
+	 * @return the superclass, interfaces, and kind of a class, as a string
+	 *         that changes when any of them changes
+	 * @throws TypeNotPresentException
+	 *             if the class file of the class can not be found
+	 */
+	public String describe(String name) {
+		return this.info(name).describe();
+	}
+
+	public void add(String name, int access, String superName, String[] interfaces) {
+		this.infos(loader.get()).put(name, new Info(name, superName, interfaces, (access & Opcodes.ACC_INTERFACE) != 0));
+	}
+
+	public void add(ClassReader reader) {
+		this.add(reader.getClassName(), reader.getAccess(), reader.getSuperName(), reader.getInterfaces());
+	}
+
+	/**
+	 * Adds a class from its class file, which may have a version that ASM
+	 * can not read.
+	 */
+	public void add(byte[] classFile) {
+		try {
+			final Info info = readHeader(classFile);
+			this.infos(loader.get()).put(info.name, info);
+		} catch (IOException | RuntimeException e) {
+			// not a class file, the class is looked up later if needed
+		}
+	}
+
+	private ConcurrentHashMap<String, Info> infos(ClassLoader classLoader) {
+		synchronized (this.infos) {
+			return this.infos.computeIfAbsent(classLoader, l -> new ConcurrentHashMap<>());
+		}
+	}
+
+	/**
+	 * @return the loaders to look classes up through, the topmost parent
+	 *         first
+	 */
+	private static List<ClassLoader> loaders() {
+		ClassLoader initiating = loader.get();
+		if (initiating == null) {
+			initiating = Thread.currentThread().getContextClassLoader();
+		}
+		if (initiating == null) {
+			initiating = ClassLoader.getSystemClassLoader();
+		}
+		final List<ClassLoader> ret = new ArrayList<>();
+		for (ClassLoader l = initiating; l != null; l = l.getParent()) {
+			ret.add(0, l);
+		}
+		return ret;
+	}
+
+	private Info info(String name) {
+		final List<ClassLoader> loaders = loaders();
+		// as class loading, ask the parents first
+		Info ret = this.infos(null).get(name);
+		for (int i = 0; ret == null && i < loaders.size(); ++i) {
+			ret = this.infos(loaders.get(i)).get(name);
+		}
+		if (ret == null) {
+			ret = this.load(name, loaders);
+		}
+		final Map<String, String> recording = consulted.get();
+		if (recording != null) {
+			recording.put(name, ret.describe());
+		}
+		return ret;
+	}
+
+	private Info load(String name, List<ClassLoader> loaders) {
+		final String resource = name+".class";
+		for (ClassLoader l : loaders) {
+			final InputStream in = l.getResourceAsStream(resource);
+			if (in == null) {
+				continue;
+			}
+			try (InputStream is = in) {
+				final Info ret = readHeader(IOUtils.toByteArray(is));
+				if (name.equals(ret.name)) {
+					final Info prev = this.infos(l).putIfAbsent(name, ret);
+					return (prev != null) ? prev : ret;
+				}
+			} catch (IOException | RuntimeException e) {
+				// try the next loader
+			}
+		}
+		// not remembered, the class may be defined later
+		throw new TypeNotPresentException(name.replace('/', '.'), null);
+	}
+
+	/**
+	 * Parses the access flags, names, and interfaces of a class file.
+	 */
+	private static Info readHeader(byte[] classFile) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		if (in.readInt() != 0xCAFEBABE) {
+			throw new IOException("not a class file");
+		}
+		in.readUnsignedShort(); // minor
+		in.readUnsignedShort(); // major
+		final int count = in.readUnsignedShort();
+		final int[] classNameIndex = new int[count];
+		final String[] utf8 = new String[count];
+		for (int i = 1; i < count; ++i) {
+			final int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1:  // Utf8
+				utf8[i] = in.readUTF();
+				break;
+			case 7:  // Class
+				classNameIndex[i] = in.readUnsignedShort();
+				break;
+			case 8:  // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				in.skipBytes(2);
+				break;
+			case 15: // MethodHandle
+				in.skipBytes(3);
+				break;
+			case 3:  // Integer
+			case 4:  // Float
+			case 9:  // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 12: // NameAndType
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				in.skipBytes(4);
+				break;
+			case 5:  // Long
+			case 6:  // Double
+				in.skipBytes(8);
+				++i;
+				break;
+			default:
+				throw new IOException("bad constant pool tag "+tag);
+			}
+		}
+		final int access = in.readUnsignedShort();
+		final String name = utf8[classNameIndex[in.readUnsignedShort()]];
+		final int superIndex = in.readUnsignedShort();
+		final String superName = (superIndex == 0) ? null : utf8[classNameIndex[superIndex]];
+		final String[] interfaces = new String[in.readUnsignedShort()];
+		for (int i = 0; i < interfaces.length; ++i) {
+			interfaces[i] = utf8[classNameIndex[in.readUnsignedShort()]];
+		}
+		return new Info(name, superName, interfaces, (access & Opcodes.ACC_INTERFACE) != 0);
+	}
+
+	public boolean isInterface(String name) {
+		return this.info(name).isInterface;
+	}
+
+	/**
+	 * @return true if a value of type {@code from} can be assigned to a
+	 *         variable of type {@code to}
+	 */
+	public boolean isAssignableFrom(String to, String from) {
+		if (to.equals(from) || to.equals("java/lang/Object")) {
+			return true;
+		}
+		final Set<String> seen = new HashSet<>();
+		final List<String> todo = new ArrayList<>();
+		todo.add(from);
+		while (!todo.isEmpty()) {
+			final String name = todo.remove(todo.size() - 1);
+			if (name.equals(to)) {
+				return true;
+			}
+			if (seen.add(name) && !name.equals("java/lang/Object")) {
+				final Info info = this.info(name);
+				if (info.superName != null) {
+					todo.add(info.superName);
+				}
+				for (String itf : info.interfaces) {
+					todo.add(itf);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Behaves like {@link org.objectweb.asm.ClassWriter#getCommonSuperClass},
+	 * but without loading classes.
+	 *
+	 * @throws TypeNotPresentException
+	 *             if the class file of a type can not be found
+	 */
+	public String getCommonSuperClass(String type1, String type2) {
+		if (this.isAssignableFrom(type1, type2)) {
+			return type1;
+		}
+		if (this.isAssignableFrom(type2, type1)) {
+			return type2;
+		}
+		if (this.isInterface(type1) || this.isInterface(type2)) {
+			return "java/lang/Object";
+		}
+		String ret = type1;
+		do {
+			ret = this.info(ret).superName;
+		} while (ret != null && !this.isAssignableFrom(ret, type2));
+		return (ret == null) ? "java/lang/Object" : ret;
+	}
+}
@@ -1,31 +1,73 @@
 package com.github.kaeluka.spencer.instrumentation;
 
+import com.github.kaeluka.spencer.instrumentation.runtime.EventKind;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.util.CheckClassAdapter;
-import org.objectweb.asm.util.TraceClassVisitor;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Instrument {
 	public static final boolean enabled  = System.getProperty("org.spencer.instrumentation.enable",                    "true"). equals("true");
 	public static final boolean tracing  = System.getProperty("org.spencer.instrumentation.tracing.enable",            "true"). equals("true");
 	public static final boolean checking = System.getProperty("org.spencer.instrumentation.checking.enable",           "true"). equals("true");
 
-	public static final boolean instrumentFields  = System.getProperty("org.spencer.instrumentation.fields.enable",    "true"). equals("true");
-	public static final boolean instrumentVars    = System.getProperty("org.spencer.instrumentation.variables.enable", "true"). equals("true");;
-	public static final boolean instrumentMethods = System.getProperty("org.spencer.instrumentation.methods.enable",   "true"). equals("true");;
+	// can be changed while running, see Agent
+	private static volatile Levels levels = Levels.fromProperties();
+
+	// sample 1 in N events per site, N=1 instruments every event
+	public static final int sampleFields          = Integer.getInteger("org.spencer.instrumentation.sampling.fields",    1);
+	public static final int sampleVars            = Integer.getInteger("org.spencer.instrumentation.sampling.variables", 1);
+	public static final int sampleArrays          = Integer.getInteger("org.spencer.instrumentation.sampling.arrays",    1);
+	// fixed: every N-th event of a site, random: each event with probability 1/N
+	public static final boolean samplingRandom    = System.getProperty("org.spencer.instrumentation.sampling.mode",    "fixed").equals("random");
+
+	// count field accesses per field and call, and report the counts when the
+	// method exits, instead of every access
+	public static final boolean aggregateFields = System.getProperty("org.spencer.instrumentation.fields.aggregate", "false").equals("true");
+
+	// every hook checks NativeInterface.hooksEnabled first, so that events
+	// can be paused
+	public static final boolean guardHooks = System.getProperty("org.spencer.instrumentation.guard.enable", "true").equals("true");
+
+	// invokestatic: hooks call NativeInterface directly, invokedynamic: hooks
+	// are linked by HookLinker, and can be switched at run time
+	public static final String hookMode = System.getProperty("org.spencer.instrumentation.hooks.mode", "invokestatic");
+
+	// leave out load events that repeat an earlier one, see RedundantLoads,
+	// the counts per method are written to redundancy.report at shutdown
+	public static final boolean removeRedundantLoads = System.getProperty("org.spencer.instrumentation.redundancy.enable", "false").equals("true");
+
+	// report the elements that a loop over an array accesses as one range,
+	// see ArrayScans
+	public static final boolean arrayRanges = System.getProperty("org.spencer.instrumentation.arrays.ranges", "false").equals("true");
 
 	protected static final boolean enableComments = System.getProperty("org.spencer.instrumentation.comments.enable",  "false").equals("true");
 	public static final boolean loudWarnings = System.getProperty("org.spencer.instrumentation.warnings.loud",         "true"). equals("true");
 
+	// null if tracing is off
+	private static final BytecodeDumper dumper = tracing ? BytecodeDumper.fromProperties() : null;
+
+	// null if checking is off
+	private static final ClassChecker checker = ClassChecker.fromProperties();
+
+	// null if caching is off
+	private static final TransformCache cache = TransformCache.fromProperties(configuration());
+
 	public static final int SPECIAL_VAL_NORMAL = 0; // normal
 	public static final int SPECIAL_VAL_THIS   = 1; /*
 	 * returned as callee id from
@@ -50,74 +92,258 @@ public class Instrument {
 	 * void main(...)
 	 */
 	public static final int SPECIAL_VAL_MAX = 5;
-	private static List<String> errors = new ArrayList<>();
+	// appended to by all threads that load classes
+	private static final Queue<String> errors = new ConcurrentLinkedQueue<>();
+
+	// what happened to the classes passed to transform
+	private static final AtomicInteger transformedClasses = new AtomicInteger();
+	private static final AtomicInteger skippedClasses     = new AtomicInteger(); // nothing to instrument
+	private static final AtomicInteger excludedClasses    = new AtomicInteger();
+	private static final AtomicInteger cachedClasses      = new AtomicInteger();
+	private static final AtomicInteger failedClasses      = new AtomicInteger();
+	// set when a transform on the current thread fails, see takeFailure
+	private static final ThreadLocal<Boolean> failed = ThreadLocal.withInitial(() -> false);
+	// load hooks, if redundant loads are removed
+	private static final AtomicInteger removedLoads       = new AtomicInteger();
+	private static final AtomicInteger onceLoads          = new AtomicInteger();
+	// {removed, once per call} by class.method+descriptor, the last transform
+	// of a class counts
+	private static final ConcurrentHashMap<String, int[]> loadsByMethod = new ConcurrentHashMap<>();
+
+	static {
+		if (!hookMode.equals("invokestatic") && !hookMode.equals("invokedynamic")) {
+			throw new IllegalArgumentException("unknown hooks mode '"+hookMode+"', expected invokestatic or invokedynamic");
+		}
+		if (System.getProperty("org.spencer.instrumentation.stats.enable", "false").equals("true")) {
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(statistics()),
+					"spencer-instrumentation-stats"));
+		}
+		if (removeRedundantLoads) {
+			final File report = new File(System.getProperty("org.spencer.instrumentation.redundancy.report",
+					"log/redundant-loads.txt"));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> writeLoadsReport(report),
+					"spencer-redundancy-report"));
+		}
+	}
+
+	/**
+	 * @return N if events of the given kind are sampled 1 in N, 1 if all
+	 *         events of that kind are instrumented
+	 */
+	public static int samplingRate(int eventKind) {
+		switch (eventKind) {
+		case EventKind.LOAD_FIELD_A:
+		case EventKind.STORE_FIELD_A:
+		case EventKind.READ:
+		case EventKind.MODIFY:
+			return sampleFields;
+		case EventKind.LOAD_VAR:
+		case EventKind.STORE_VAR:
+			return sampleVars;
+		case EventKind.LOAD_ARRAY_A:
+		case EventKind.STORE_ARRAY_A:
+		case EventKind.READ_ARRAY:
+		case EventKind.MODIFY_ARRAY:
+			return sampleArrays;
+		default:
+			return 1;
+		}
+	}
+
+	public static Levels getLevels() {
+		return levels;
+	}
+
+	/**
+	 * Classes transformed from now on are instrumented at the given levels.
+	 * Classes that are loaded already stay as they are, unless they are
+	 * retransformed (see {@link Agent#setLevels(Levels)}).
+	 */
+	public static void setLevels(Levels levels) {
+		Instrument.levels = levels;
+	}
+
+	/**
+	 * @return all settings that affect the instrumented code, except for the
+	 *         levels
+	 */
+	public static String configuration() {
+		return "comments="+enableComments
+				+ ",hooks="+hookMode
+				+ ",aggregate="+aggregateFields
+				+ ",guard="+guardHooks
+				+ ",redundancy="+removeRedundantLoads
+				+ ",ranges="+arrayRanges
+				+ ",sampling="+sampleFields+"/"+sampleVars+"/"+sampleArrays+"/"+(samplingRandom ? "random" : "fixed")
+				+ ",include="+System.getProperty("org.spencer.instrumentation.include", "")
+				+ ",exclude="+System.getProperty("org.spencer.instrumentation.exclude", "");
+	}
 
 	public static String getClassName(byte[] byteCode) {
 		return new ClassReader(byteCode).getClassName();
 	}
 
 	public static boolean isInterface(final byte[] byteCode) {
-        return (new ClassReader(byteCode).getAccess() | Opcodes.ACC_INTERFACE) != 0;
+        return (new ClassReader(byteCode).getAccess() & Opcodes.ACC_INTERFACE) != 0;
 	}
 
 	public static byte[] transform(byte[] byteCode) {
-		final ClassReader classreader = new ClassReader(byteCode);
-		final String className = classreader.getClassName();
+		return transform(byteCode, levels);
+	}
 
+	/**
+	 * @return whether a transform on the current thread failed (and returned
+	 *         the original class file) since the last call
+	 */
+	static boolean takeFailure() {
+		final boolean ret = failed.get();
+		failed.set(false);
+		return ret;
+	}
+
+	public static byte[] transform(byte[] byteCode, Levels levels) {
         if (!Instrument.enabled) {
 //            System.out.println("returning original bytecode (disabled)");
             return byteCode;
         }
 
+        // also for cached classes, whose subclasses may be transformed later
+        HierarchyIndex.shared().add(byteCode);
+
+        final String cacheKey = (cache != null) ? cache.key(byteCode, levels) : null;
+        if (cache != null) {
+            final byte[] cached = cache.get(cacheKey, byteCode);
+            if (cached != null) {
+                cachedClasses.incrementAndGet();
+                return cached;
+            }
+        }
+
+		final ClassReader classreader = new ClassReader(byteCode);
+		final String className = classreader.getClassName();
+
         if (Util.isClassNameBlacklisted(className)) {
 //            System.out.println("returning original bytecode (class "+className+" blacklisted)");
+            excludedClasses.incrementAndGet();
+            if (cache != null) {
+                cache.put(cacheKey, null, Collections.emptyList());
+            }
+            return byteCode;
+        }
+
+        if (!PreScan.hasWork(classreader, levels)) {
+            skippedClasses.incrementAndGet();
+            if (cache != null) {
+                cache.put(cacheKey, null, Collections.emptyList());
+            }
             return byteCode;
         }
 
+        HierarchyIndex.startRecording();
         try {
-            final ClassWriter classwriter = new ClassWriter(classreader, ClassWriter.COMPUTE_FRAMES);
-            final ClassVisitor checkingwriter = Instrument.checking ? check(classwriter)
+            final ClassWriter classwriter = new HierarchyClassWriter(classreader, ClassWriter.COMPUTE_FRAMES,
+                    HierarchyIndex.shared());
+            final ClassVisitor checkingwriter = (checker != null) ? checker.inline(className, classwriter)
                     : classwriter;
-            final ClassVisitor tracingwriter = Instrument.tracing ? trace(checkingwriter, className) : checkingwriter;
-            classreader.accept(new InstrumentationVisitor(tracingwriter),
-                    ClassReader.EXPAND_FRAMES);
+            final InstrumentationVisitor instrumenter = new InstrumentationVisitor(checkingwriter, levels,
+                    removeRedundantLoads ? RedundantLoads.scan(classreader) : null,
+                    arrayRanges && levels.fields ? ArrayScans.scan(classreader) : null);
+            classreader.accept(instrumenter, ClassReader.EXPAND_FRAMES);
 //            System.out.println("returning transformed class for "+className);
-            return classwriter.toByteArray();
+            final byte[] ret = classwriter.toByteArray();
+            // the frames depend on the hierarchies looked up on the way
+            final Map<String, String> hierarchy = HierarchyIndex.stopRecording();
+            if (dumper != null) {
+                dumper.dump(className, ret);
+            }
+            if (checker != null) {
+                checker.afterTransform(className, ret);
+            }
+            if (cache != null) {
+                cache.put(cacheKey, ret, instrumenter.getSites(), hierarchy);
+            }
+            transformedClasses.incrementAndGet();
+            removedLoads.addAndGet(sum(instrumenter.getRemovedLoads().values()));
+            onceLoads.addAndGet(sum(instrumenter.getOnceLoads().values()));
+            countLoads(className, instrumenter.getRemovedLoads(), 0);
+            countLoads(className, instrumenter.getOnceLoads(), 1);
+            return ret;
         } catch (RuntimeException ex) {
 //            System.out.println("returning original bytecode (exception: -- "+ex.getMessage()+")");
+            HierarchyIndex.stopRecording();
+            failed.set(true);
+            failedClasses.incrementAndGet();
+            if (checker != null && isCheckFailure(ex)) {
+                checker.failed(className, ex);
+            }
             logError(className, ex);
             return byteCode;
         }
 	}
 
-	private static boolean logError(final String className, RuntimeException ex) {
+	private static void countLoads(String className, Map<String, Integer> byMethod, int column) {
+		for (Map.Entry<String, Integer> e : byMethod.entrySet()) {
+			loadsByMethod.computeIfAbsent(className+"."+e.getKey(), k -> new int[2])[column] = e.getValue();
+		}
+	}
+
+	/**
+	 * @return the load hooks that were removed as redundant, and that report
+	 *         once per call, by class.method+descriptor
+	 */
+	public static Map<String, int[]> getLoadsByMethod() {
+		return new TreeMap<>(loadsByMethod);
+	}
+
+	private static void writeLoadsReport(File report) {
+		if (report.getAbsoluteFile().getParentFile() != null) {
+			report.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		try (PrintWriter out = new PrintWriter(report)) {
+			out.println("# removed\tonce per call\tmethod");
+			for (Map.Entry<String, int[]> e : getLoadsByMethod().entrySet()) {
+				out.println(e.getValue()[0]+"\t"+e.getValue()[1]+"\t"+e.getKey());
+			}
+		} catch (FileNotFoundException e) {
+			System.err.println("spencer: can not write the redundant loads report to "+report+": "+e);
+		}
+	}
+
+	private static int sum(Collection<Integer> counts) {
+		int ret = 0;
+		for (int count : counts) {
+			ret += count;
+		}
+		return ret;
+	}
+
+	static boolean logError(final String className, Throwable ex) {
 		return Instrument.errors.add(className+": "+ex.getMessage());
 	}
 
+	/**
+	 * @return the errors so far
+	 */
 	public static List<String> getErrors() {
-		return Instrument.errors;
+		return new ArrayList<>(Instrument.errors);
 	}
 
-	private static ClassVisitor check(ClassVisitor cv) {
-		return new CheckClassAdapter(cv, false);
+	/**
+	 * @return how many classes were instrumented, and why the others were not
+	 */
+	public static String statistics() {
+		return "classes: "+transformedClasses.get()+" instrumented, "
+				+ skippedClasses.get()+" skipped (nothing to instrument), "
+				+ excludedClasses.get()+" excluded, "
+				+ cachedClasses.get()+" from the cache, "
+				+ failedClasses.get()+" failed"
+				+ (removeRedundantLoads
+						? "; load hooks: "+removedLoads.get()+" removed as redundant, "+onceLoads.get()+" once per call"
+						: "");
 	}
 
-	private static ClassVisitor trace(ClassVisitor cv, String classname) {
-
-		try {
-			final File outfile = new File("log/output/"
-					+ classname + ".bytecode");
-			if (!outfile.getParentFile().exists()) {
-				outfile.getParentFile().mkdirs();
-			}
-			//			return new TraceClassVisitor(
-			//					new TraceClassVisitor(cv, new PrintWriter(outfile)), new PrintWriter(
-			//							System.out));
-			return new TraceClassVisitor(cv, new PrintWriter(outfile));
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-			System.exit(1);
-			return null;
-		}
+	private static boolean isCheckFailure(RuntimeException ex) {
+		final StackTraceElement[] trace = ex.getStackTrace();
+		return trace.length > 0 && trace[0].getClassName().startsWith("org.objectweb.asm.util.Check");
 	}
 }
@@ -1,20 +1,62 @@
 package com.github.kaeluka.spencer.instrumentation;
 
+import com.github.kaeluka.spencer.instrumentation.runtime.EventKind;
+import com.github.kaeluka.spencer.instrumentation.runtime.Site;
+import com.github.kaeluka.spencer.instrumentation.runtime.SiteTable;
 import org.objectweb.asm.*;
 import org.objectweb.asm.commons.AdviceAdapter;
 import org.objectweb.asm.commons.AnalyzerAdapter;
 import org.objectweb.asm.commons.JSRInlinerAdapter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
+	// the switch in NativeInterface that the guards of all hooks read
+	private static final String HOOKS_ENABLED = "hooksEnabled";
+	// more aggregated fields per method get their hooks, the code that reports
+	// the counts is repeated at every exit
+	private static final int MAX_COUNTERS = 64;
+	private static final Handle HOOK_BOOTSTRAP = new Handle(H_INVOKESTATIC, "NativeInterface", "bootstrap",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)"
+			+ "Ljava/lang/invoke/CallSite;", false);
+
 	private String classname;
 	private String sourceFileName;
+	// the ids of all sites registered while instrumenting this class
+	private final List<Integer> sites = new ArrayList<>();
+	private final Levels levels;
+	// null unless redundant loads are removed
+	private final RedundantLoads redundantLoads;
+	// null unless loops over arrays report ranges
+	private final ArrayScans arrayScans;
+	private int version;
+	// load hooks left out, and load hooks that report once per call, by
+	// method name + descriptor
+	private final Map<String, Integer> removedLoads = new LinkedHashMap<>();
+	private final Map<String, Integer> onceLoads = new LinkedHashMap<>();
+
+	public InstrumentationVisitor(ClassVisitor cv, Levels levels) {
+		this(cv, levels, null);
+	}
+
+	public InstrumentationVisitor(ClassVisitor cv, Levels levels, RedundantLoads redundantLoads) {
+		this(cv, levels, redundantLoads, null);
+	}
 
-	public InstrumentationVisitor(ClassVisitor cv) {
+	public InstrumentationVisitor(ClassVisitor cv, Levels levels, RedundantLoads redundantLoads,
+			ArrayScans arrayScans) {
 		super(Opcodes.ASM5, cv);
+		this.levels = levels;
+		this.redundantLoads = redundantLoads;
+		this.arrayScans = arrayScans;
 	}
 
 	public String getClassName() {
@@ -31,6 +73,69 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 		return this.sourceFileName;
 	}
 
+	private int registerSite(Site site) {
+		final int id = SiteTable.register(site);
+		this.sites.add(id);
+		return id;
+	}
+
+	public List<Integer> getSites() {
+		return this.sites;
+	}
+
+	private void emitGuard(ExitHandler mv, Label skip) {
+		if (Instrument.guardHooks) {
+			mv.visitFieldInsn(GETSTATIC, "NativeInterface", HOOKS_ENABLED, "Z");
+			mv.visitJumpInsn(IFEQ, skip);
+		}
+	}
+
+	private void emitHook(ExitHandler mv, String name, String desc) {
+		if (this.isDynamicHooks()) {
+			mv.visitInvokeDynamicInsn(name, desc, HOOK_BOOTSTRAP);
+		} else {
+			mv.visitMethodInsn(INVOKESTATIC, "NativeInterface", name, desc, false);
+		}
+	}
+
+	/**
+	 * Reports the count in the given local, unless it is 0.
+	 */
+	private void emitAccessCount(ExitHandler mv, int site, int counter) {
+		final Label skip = new Label();
+		mv.visitVarInsn(ILOAD, counter);
+		mv.visitJumpInsn(IFEQ, skip);
+		this.emitGuard(mv, skip);
+		mv.visitVarInsn(ILOAD, counter);
+		mv.push(site);
+		this.emitHook(mv, "accessCount", "(II)V");
+		mv.visitLabel(skip);
+	}
+
+	/**
+	 * @return true if hooks are invokedynamic instructions; classes older
+	 *         than version 51 can not have them, and get invokestatic hooks
+	 */
+	private boolean isDynamicHooks() {
+		return Instrument.hookMode.equals("invokedynamic") && (this.version & 0xFFFF) >= Opcodes.V1_7;
+	}
+
+	/**
+	 * @return the number of load hooks that were left out as redundant, by
+	 *         method name + descriptor
+	 */
+	public Map<String, Integer> getRemovedLoads() {
+		return this.removedLoads;
+	}
+
+	/**
+	 * @return the number of load hooks that report only once per call, by
+	 *         method name + descriptor
+	 */
+	public Map<String, Integer> getOnceLoads() {
+		return this.onceLoads;
+	}
+
 	private static boolean isArrayType(String desc) {
 		return desc.charAt(0) == '[';
 	}
@@ -44,6 +149,7 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 	public void visit(int version, int access, String name, String signature,
 			String superName, String[] interfaces) {
 		this.classname = name;
+		this.version = version;
 		super.visit(version, access, name, signature, superName, interfaces);
 	}
 
@@ -57,42 +163,65 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 			return acc;
 		}
 
-		if (Instrument.instrumentMethods) {
-			// TODO: connecting the analyzer should be factored out (duplicated below)!
-			final MethodMV methodMv = new MethodMV(acc, this.getClassName(), name,
-					access, desc);
-			MethodVisitor exitHandler = ExitHandler.mk(
-					methodMv, access, name,
-					desc, signature, exceptions, (mv, reason) -> {
-						mv.visitLdcInsn("reason for exit: "+reason);
-						mv.visitInsn(POP);
-						mv.visitLdcInsn(name);
-						mv.visitLdcInsn(this.getClassName());
-						mv.visitMethodInsn(INVOKESTATIC, "NativeInterface", "methodExit",
-								"(Ljava/lang/String;Ljava/lang/String;)V", false);
+		// the counters of aggregated field accesses, as {site, local}
+		final List<int[]> counters = (this.levels.fields && Instrument.aggregateFields) ? new ArrayList<>() : null;
+		if (this.levels.methods || counters != null) {
+			final int exitSite = this.levels.methods ? this.registerSite(new Site(EventKind.METHOD_EXIT,
+					this.getClassName(), name, desc, this.getClassName(), name, -1)) : -1;
+			acc = ExitHandler.mk(
+					acc, access, name,
+					desc, signature, exceptions, mv -> {
+						// the method is complete when the exit handler runs
+						if (counters != null) {
+							for (int[] counter : counters) {
+								// not push(0), in constructors, the adapter still
+								// simulates the stack here
+								mv.visitInsn(ICONST_0);
+								mv.visitVarInsn(ISTORE, counter[1]);
+							}
+						}
+					}, (mv, reason) -> {
+						if (counters != null) {
+							for (int[] counter : counters) {
+								this.emitAccessCount(mv, counter[0], counter[1]);
+							}
+						}
+						if (this.levels.methods) {
+							mv.visitLdcInsn("reason for exit: "+reason);
+							mv.visitInsn(POP);
+							final Label skip = new Label();
+							this.emitGuard(mv, skip);
+							mv.push(exitSite);
+							this.emitHook(mv, "methodExit", "(I)V");
+							mv.visitLabel(skip);
+						}
 					});
-			AnalyzerAdapter analyzer = new AnalyzerAdapter(this.classname,
-					access, name, desc, exitHandler);
-			methodMv.setAnalyzer(analyzer);
-			acc = analyzer;
 		}
 
-		if (Instrument.instrumentVars) {
-			VarMV varmv = new VarMV(acc, this.getClassName(), name, access,
-					desc);
-			AnalyzerAdapter analyzer = new AnalyzerAdapter(this.classname,
-					access, name, desc, varmv);
-			varmv.setAnalyzer(analyzer);
-			acc = analyzer;
+		final InstrumentationMV host = new InstrumentationMV(acc, this.getClassName(), name,
+				access, desc);
+		if (this.levels.fields) {
+			host.addEmitter(new FieldEmitter(host));
 		}
-		if (Instrument.instrumentFields) {
-			FieldMV fieldmv = new FieldMV(acc, this.getClassName(), name,
-					access, desc);
-			AnalyzerAdapter analyzer = new AnalyzerAdapter(this.classname,
-					access, name, desc, fieldmv);
-			fieldmv.setAnalyzer(analyzer);
-			acc = analyzer;
+		if (this.levels.variables) {
+			host.addEmitter(new VarEmitter(host));
 		}
+		if (this.levels.methods) {
+			host.addEmitter(new MethodEmitter(host));
+		}
+		final AnalyzerAdapter analyzer = new AnalyzerAdapter(this.classname,
+				access, name, desc, host);
+		host.setAnalyzer(analyzer);
+		host.aggregateInto(counters);
+		if (this.redundantLoads != null) {
+			host.removeRedundantLoads(
+					this.redundantLoads.tracker((this.version & 0xFFFF) < Opcodes.V1_7),
+					this.redundantLoads.invariantLoads(name, desc));
+		}
+		if (this.arrayScans != null && this.levels.fields) {
+			host.scanArrays(this.arrayScans.loops(name, desc));
+		}
+		acc = analyzer;
 
 		return new JSRInlinerAdapter(acc, access, name, desc, signature,
 				exceptions);
@@ -107,10 +236,80 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 	}
 
 
+	/**
+	 * One concern of the instrumentation (fields, variables, methods). The
+	 * {@link InstrumentationMV} shows every instruction of the original method
+	 * to its emitters, which add their hooks through it. Code that an emitter
+	 * adds is not shown to the emitters again.
+	 */
+	private abstract class Emitter implements Opcodes {
+		protected final InstrumentationMV host;
+
+		Emitter(InstrumentationMV host) {
+			this.host = host;
+		}
+
+		public void onMethodEnter() {
+		}
+
+		// called before the instruction
+
+		public void visitInsn(int opcode) {
+		}
+
+		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+		}
+
+		public void visitVarInsn(int opcode, int var) {
+		}
+
+		// called after the instruction
+
+		public void afterIntInsn(int opcode, int operand) {
+		}
+
+		public void afterTypeInsn(int opcode, String type) {
+		}
+	}
+
+	/**
+	 * Runs the emitters over a method. All emitters share the one
+	 * {@link AnalyzerAdapter} in front of this visitor, which sees the original
+	 * code only.
+	 */
 	public class InstrumentationMV extends AdviceAdapter {
 		private final String methodname;
 		private final String signature;
 		private final String classDescr;
+		private final List<Emitter> emitters = new ArrayList<>();
+		// true while an emitter adds code
+		private boolean emitting = false;
+		// null unless redundant loads are removed
+		private RedundantLoads.Tracker tracker = null;
+		private Set<String> invariantLoads = Collections.emptySet();
+		// the local variables that remember which invariant loads were
+		// reported in the current call
+		private final Map<String, Integer> onceFlags = new HashMap<>();
+		private int removedLoads = 0;
+		// null unless field accesses are aggregated, see countAccess
+		private List<int[]> counters = null;
+		private final Map<String, Integer> counterByField = new HashMap<>();
+		// for constructors: whether super(...) was called
+		private boolean entered = false;
+		// the loops over arrays, by the index of their exit jump, see ArrayScans
+		private Map<Integer, ArrayScans.Loop> loops = Collections.emptyMap();
+		// the index of the current original instruction
+		private int insn = -1;
+		// the loop being visited, if its accesses are reported as ranges
+		private ArrayScans.Loop scan = null;
+		private Label scanExit;
+		private Label rangeExit;
+		// the range sites of the loop, by kind
+		private final Map<Integer, Integer> rangeSites = new LinkedHashMap<>();
+		// the flag of the hook being emitted, if it reports once per call
+		private Integer onceFlag = null;
+		// true while emitting a hook that counts as reported in this block
+		private boolean reporting = false;
 
 
 		// sometimes, we need to track the variables that have been assigned, as
@@ -343,8 +542,111 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 			 }
 		}
 
-		protected void pushCallerClassStr() {
-			super.visitLdcInsn(getClassName());
+		/**
+		 * Registers a new site for the current method in the {@link SiteTable}
+		 * and pushes its id.
+		 */
+		protected void pushSite(int kind, String owner, String name, String desc, int var) {
+			this.pushInt(this.newSite(kind, owner, name, desc, var));
+		}
+
+		protected int newSite(int kind, String owner, String name, String desc, int var) {
+			return InstrumentationVisitor.this.registerSite(new Site(kind, owner, name, desc,
+					this.getClassDescr(), this.getMethodName(), var));
+		}
+
+		/**
+		 * Emits the prologue of a hook: execution jumps to the returned label,
+		 * which must be passed to {@link #endHook(Label)} right after the
+		 * hook, if hooks are paused (see {@code NativeInterface.pause()}),
+		 * if the event at the given site is not sampled, or if the load at the
+		 * current instruction was reported in this call already (see
+		 * {@link RedundantLoads}). The hook code in between must leave the
+		 * stack as it found it.
+		 *
+		 * @return null if the hook always runs (and no code was emitted)
+		 */
+		protected Label beginHook(int kind, int site) {
+			Label skip = this.beginHook();
+			final int rate = Instrument.samplingRate(kind);
+			if (rate > 1) {
+				if (skip == null) {
+					skip = new Label();
+				}
+				this.pushInt(site);
+				this.pushInt(rate);
+				this.emitHook(Instrument.samplingRandom ? "sampleRandom" : "sampleFixed", "(II)Z");
+				super.visitJumpInsn(IFEQ, skip);
+			}
+			if (this.tracker != null && rate <= 1) {
+				this.reporting = true;
+				this.onceFlag = this.onceFlags.get(this.tracker.current());
+				if (this.onceFlag != null) {
+					if (skip == null) {
+						skip = new Label();
+					}
+					// the flag is a new local, it must not be remapped
+					this.mv.visitVarInsn(ILOAD, this.onceFlag);
+					this.mv.visitJumpInsn(IFNE, skip);
+				}
+			}
+			return skip;
+		}
+
+		/**
+		 * Emits the prologue of a hook that is never sampled, see
+		 * {@link #beginHook(int, int)}.
+		 */
+		protected Label beginHook() {
+			if (!Instrument.guardHooks) {
+				return null;
+			}
+			final Label skip = new Label();
+			super.visitFieldInsn(GETSTATIC, "NativeInterface", HOOKS_ENABLED, "Z");
+			super.visitJumpInsn(IFEQ, skip);
+			return skip;
+		}
+
+		protected void endHook(Label skip) {
+			if (this.onceFlag != null) {
+				this.mv.visitInsn(ICONST_1);
+				this.mv.visitVarInsn(ISTORE, this.onceFlag);
+				this.onceFlag = null;
+			}
+			if (this.reporting) {
+				this.tracker.setReported();
+				this.reporting = false;
+			}
+			if (skip != null) {
+				super.visitLabel(skip);
+			}
+		}
+
+		protected void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				super.visitInsn(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				super.visitIntInsn(BIPUSH, value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				super.visitIntInsn(SIPUSH, value);
+			} else {
+				super.visitLdcInsn(value);
+			}
+		}
+
+		protected void emitHook(String name, String desc) {
+			super.visitMethodInsn(INVOKESTATIC, "NativeInterface", name, desc, false);
+		}
+
+		/**
+		 * Emits the call of the hook of an event.
+		 */
+		protected void emitEventHook(String name, String desc) {
+			if (InstrumentationVisitor.this.isDynamicHooks()) {
+				super.visitInvokeDynamicInsn(name, desc, HOOK_BOOTSTRAP);
+			} else {
+				this.emitHook(name, desc);
+			}
 		}
 
 		protected void pushFakeKindAndVal() {
@@ -363,12 +665,376 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 			this.methodname = name;
 			this.signature = signature;
 		}
+
+		private void addEmitter(Emitter emitter) {
+			this.emitters.add(emitter);
+		}
+
+		private void aggregateInto(List<int[]> counters) {
+			this.counters = counters;
+		}
+
+		/**
+		 * Counts a field access in a local variable, instead of emitting its
+		 * hook. All accesses of one kind to one field share a counter, which
+		 * is reported by an accessCount event when the method exits.
+		 *
+		 * @return false if the access was not counted, and needs its hook
+		 */
+		protected boolean countAccess(int kind, String owner, String name, String desc) {
+			if (this.counters == null || !this.entered) {
+				// the counters are set up after super(...)
+				return false;
+			}
+			final String field = kind+" "+owner+"."+name;
+			Integer counter = this.counterByField.get(field);
+			if (counter == null) {
+				if (this.counters.size() >= MAX_COUNTERS) {
+					return false;
+				}
+				counter = this.newLocal(Type.INT_TYPE);
+				this.counters.add(new int[] { this.newSite(kind, owner, name, desc, -1), counter });
+				this.counterByField.put(field, counter);
+			}
+			// the counter is a new local, it must not be remapped
+			this.mv.visitIincInsn(counter, 1);
+			return true;
+		}
+
+		private void scanArrays(Map<Integer, ArrayScans.Loop> loops) {
+			this.loops = loops;
+		}
+
+		// counts the original instructions, see ArrayScans
+		private void step() {
+			if (!this.emitting) {
+				this.insn++;
+			}
+		}
+
+		/**
+		 * @return true if the array access at the current instruction is
+		 *         reported by the range event of its loop, and needs no hook
+		 */
+		protected boolean inRange(int kind, String arrayType) {
+			if (this.scan == null || !this.scan.accesses.containsKey(this.insn)
+					|| Instrument.samplingRate(kind) > 1) {
+				return false;
+			}
+			if (!this.rangeSites.containsKey(kind)) {
+				this.rangeSites.put(kind, this.newSite(kind, arrayType, null, arrayType.substring(1), -1));
+			}
+			return true;
+		}
+
+		/**
+		 * Redirects the exit jump of a loop over an array to the code that
+		 * reports its ranges, which {@link #endScan()} emits after the loop.
+		 */
+		private Label beginScan(Label exit) {
+			final ArrayScans.Loop loop = this.loops.get(this.insn);
+			if (loop == null || !this.entered) {
+				return exit;
+			}
+			this.scan = loop;
+			this.scanExit = exit;
+			this.rangeExit = new Label();
+			this.rangeSites.clear();
+			return this.rangeExit;
+		}
+
+		private void endScan() {
+			final ArrayScans.Loop loop = this.scan;
+			this.scan = null;
+			super.visitLabel(this.rangeExit);
+			if (!this.rangeSites.isEmpty()) {
+				// the loop ran for [lo, i)
+				final Label empty = new Label();
+				super.visitVarInsn(ILOAD, loop.index);
+				this.pushInt(loop.lo);
+				super.visitJumpInsn(IF_ICMPLE, empty);
+				final Label skip = this.beginHook();
+				for (int site : this.rangeSites.values()) {
+					super.visitVarInsn(ALOAD, loop.array);
+					this.pushInt(loop.lo);
+					super.visitVarInsn(ILOAD, loop.index);
+					// the analyzer knows no locals after the loop's GOTO,
+					// but this is initialised, loops are scanned after super(...)
+					if (this.isStatic()) {
+						super.visitLdcInsn(Instrument.SPECIAL_VAL_STATIC);
+						super.visitInsn(ACONST_NULL);
+					} else {
+						super.visitLdcInsn(Instrument.SPECIAL_VAL_NORMAL);
+						super.visitVarInsn(ALOAD, 0);
+					}
+					this.pushInt(site);
+					this.emitEventHook("arrayRange", "("
+							+ "Ljava/lang/Object;"  // arr
+							+ "I"                   // lo
+							+ "I"                   // hi
+							+ "I"                   // callerValKind
+							+ "Ljava/lang/Object;"  // caller
+							+ "I"                   // site
+							+")V");
+				}
+				this.endHook(skip);
+				super.visitLabel(empty);
+			}
+			super.visitJumpInsn(GOTO, this.scanExit);
+		}
+
+		private void removeRedundantLoads(RedundantLoads.Tracker tracker, Set<String> invariantLoads) {
+			this.tracker = tracker;
+			this.invariantLoads = invariantLoads;
+		}
+
+		/**
+		 * @return true if the hook of the load at the current instruction can
+		 *         be left out, as the load was reported before in this block
+		 */
+		protected boolean skipRedundantLoad() {
+			if (this.tracker != null && this.tracker.isReported()) {
+				this.removedLoads++;
+				return true;
+			}
+			return false;
+		}
+
+		private boolean isOnceLoad(String key) {
+			final Levels levels = InstrumentationVisitor.this.levels;
+			if (key.charAt(0) == 'v') {
+				return levels.variables && Instrument.samplingRate(EventKind.LOAD_VAR) <= 1
+						&& !(key.equals("v0") && !this.isStatic());
+			} else {
+				return levels.fields && Instrument.samplingRate(EventKind.LOAD_FIELD_A) <= 1
+						&& !Instrument.aggregateFields && !key.contains("$");
+			}
+		}
+
+		@Override
+		public void visitCode() {
+			super.visitCode();
+			for (String key : this.invariantLoads) {
+				if (this.onceFlags.size() < RedundantLoads.MAX_FLAGS && this.isOnceLoad(key)) {
+					final int flag = this.newLocal(Type.INT_TYPE);
+					this.mv.visitInsn(ICONST_0);
+					this.mv.visitVarInsn(ISTORE, flag);
+					this.onceFlags.put(key, flag);
+				}
+			}
+		}
+
+		@Override
+		public void visitEnd() {
+			final String method = this.methodname+this.signature;
+			if (this.removedLoads > 0) {
+				InstrumentationVisitor.this.removedLoads.put(method, this.removedLoads);
+			}
+			if (!this.onceFlags.isEmpty()) {
+				InstrumentationVisitor.this.onceLoads.put(method, this.onceFlags.size());
+			}
+			super.visitEnd();
+		}
+
+		// the tracker follows the original instructions only
+
+		private boolean isTracking() {
+			return this.tracker != null && !this.emitting;
+		}
+
+		@Override
+		public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+			if (this.isTracking()) {
+				this.tracker.visitFrame(type, nLocal, local, nStack, stack);
+			}
+			super.visitFrame(type, nLocal, local, nStack, stack);
+		}
+
+		@Override
+		public void visitLabel(Label label) {
+			if (this.isTracking()) {
+				this.tracker.visitLabel(label);
+			}
+			super.visitLabel(label);
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitIincInsn(var, increment);
+			}
+			super.visitIincInsn(var, increment);
+		}
+
+		@Override
+		public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitMethodInsn(opcode, owner, name, desc, itf);
+			}
+			super.visitMethodInsn(opcode, owner, name, desc, itf);
+		}
+
+		@Override
+		public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+			}
+			super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitJumpInsn(opcode, label);
+			}
+			if (this.emitting) {
+				super.visitJumpInsn(opcode, label);
+			} else if (this.scan != null && this.insn == this.scan.backEdge) {
+				super.visitJumpInsn(opcode, label);
+				this.endScan();
+			} else {
+				super.visitJumpInsn(opcode, this.beginScan(label));
+			}
+		}
+
+		@Override
+		public void visitLdcInsn(Object cst) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitLdcInsn(cst);
+			}
+			super.visitLdcInsn(cst);
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitTableSwitchInsn(min, max, dflt, labels);
+			}
+			super.visitTableSwitchInsn(min, max, dflt, labels);
+		}
+
+		@Override
+		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitLookupSwitchInsn(dflt, keys, labels);
+			}
+			super.visitLookupSwitchInsn(dflt, keys, labels);
+		}
+
+		@Override
+		public void visitMultiANewArrayInsn(String desc, int dims) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitMultiANewArrayInsn(desc, dims);
+			}
+			super.visitMultiANewArrayInsn(desc, dims);
+		}
+
+		private boolean startEmitting() {
+			if (this.emitting || this.emitters.isEmpty()) {
+				return false;
+			}
+			this.emitting = true;
+			return true;
+		}
+
+		@Override
+		protected void onMethodEnter() {
+			this.entered = true;
+			if (this.startEmitting()) {
+				for (Emitter emitter : this.emitters) {
+					emitter.onMethodEnter();
+				}
+				this.emitting = false;
+			}
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitInsn(opcode);
+			}
+			if (this.startEmitting()) {
+				for (Emitter emitter : this.emitters) {
+					emitter.visitInsn(opcode);
+				}
+				this.emitting = false;
+			}
+			super.visitInsn(opcode);
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitFieldInsn(opcode, owner, name, desc);
+			}
+			if (this.startEmitting()) {
+				for (Emitter emitter : this.emitters) {
+					emitter.visitFieldInsn(opcode, owner, name, desc);
+				}
+				this.emitting = false;
+			}
+			super.visitFieldInsn(opcode, owner, name, desc);
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitVarInsn(opcode, var);
+			}
+			if (this.startEmitting()) {
+				for (Emitter emitter : this.emitters) {
+					emitter.visitVarInsn(opcode, var);
+				}
+				this.emitting = false;
+			}
+			super.visitVarInsn(opcode, var);
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitIntInsn(opcode, operand);
+			}
+			super.visitIntInsn(opcode, operand);
+			if (this.startEmitting()) {
+				for (Emitter emitter : this.emitters) {
+					emitter.afterIntInsn(opcode, operand);
+				}
+				this.emitting = false;
+			}
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			this.step();
+			if (this.isTracking()) {
+				this.tracker.visitTypeInsn(opcode, type);
+			}
+			super.visitTypeInsn(opcode, type);
+			if (this.startEmitting()) {
+				for (Emitter emitter : this.emitters) {
+					emitter.afterTypeInsn(opcode, type);
+				}
+				this.emitting = false;
+			}
+		}
 	}
 
-	public class FieldMV extends InstrumentationMV {
-		public FieldMV(MethodVisitor mv, String classDescr, String name,
-				int access, String sig) {
-			super(mv, classDescr, name, access, sig);
+	private class FieldEmitter extends Emitter {
+		FieldEmitter(InstrumentationMV host) {
+			super(host);
 		}
 
 		@Override
@@ -387,7 +1053,7 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 			case BASTORE:
 			case CASTORE:
 			case SASTORE:
-				emitStoreArrayPrimitive(valSize);
+				emitStoreArrayPrimitive(opcode, valSize);
 				break;
 			case AALOAD:
 				emitLoadArrayA();
@@ -399,149 +1065,183 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 			case BALOAD:
 			case CALOAD:
 			case SALOAD:
-				emitLoadArrayPrimitive();
+				emitLoadArrayPrimitive(opcode);
 				break;
 			}
-			super.visitInsn(opcode);
 		}
 
-		private void emitLoadArrayPrimitive() {
+		private void emitLoadArrayPrimitive(int opcode) {
+			final String arrayType = this.arrayTypeAtDepth(1, opcode);
+			if (this.host.inRange(EventKind.READ_ARRAY, arrayType)) {
+				return;
+			}
+			final int site = this.host.newSite(EventKind.READ_ARRAY, arrayType, null, arrayType.substring(1), -1);
+			final Label skip = this.host.beginHook(EventKind.READ_ARRAY, site);
 			// .. arr, idx
-			super.visitInsn(DUP2);
+			this.host.visitInsn(DUP2);
 			// .. arr, idx, arr, idx
-			this.pushThisKindAndObj();
+			this.host.pushThisKindAndObj();
 			// .. arr, idx, arr, idx, callerValKind, caller
-			this.pushCallerClassStr();
-			// .. arr, idx, arr, idx, callerValKind, caller, callerClass
-			super.visitMethodInsn(INVOKESTATIC,
-					"NativeInterface", "readArray", "("
+			this.host.pushInt(site);
+			// .. arr, idx, arr, idx, callerValKind, caller, site
+			this.host.emitEventHook("readArray", "("
 							+ "Ljava/lang/Object;"  // arr
 							+ "I"                   // idx
 							+ "I"                   // callerValKind
 							+ "Ljava/lang/Object;"  // caller
-							+ "Ljava/lang/String;"  // callerClass
-							+")V",
-							false);
+							+ "I"                   // site
+							+")V");
+			this.host.endHook(skip);
+		}
+
+		/**
+		 * The static type of the array reference at the given stack depth,
+		 * falling back to what the opcode implies if the analyzer does not know
+		 * better (for instance when the array is a null constant).
+		 */
+		private String arrayTypeAtDepth(int depth, int opcode) {
+			final List<Object> stack = this.host.analyzer.stack;
+			if (stack != null && stack.size() > depth) {
+				final Object type = stack.get(stack.size() - 1 - depth);
+				if (type instanceof String && isArrayType((String) type)) {
+					return (String) type;
+				}
+			}
+			switch (opcode) {
+			case IALOAD: case IASTORE: return "[I";
+			case LALOAD: case LASTORE: return "[J";
+			case FALOAD: case FASTORE: return "[F";
+			case DALOAD: case DASTORE: return "[D";
+			case BALOAD: case BASTORE: return "[B";
+			case CALOAD: case CASTORE: return "[C";
+			case SALOAD: case SASTORE: return "[S";
+			default:                   return "[Ljava/lang/Object;";
+			}
 		}
 
-		private void emitStoreArrayPrimitive(int valSize) {
+		private void emitStoreArrayPrimitive(int opcode, int valSize) {
+			// long and double values take up two stack entries in the analyzer
+			final String arrayType = this.arrayTypeAtDepth(1 + valSize, opcode);
+			if (this.host.inRange(EventKind.MODIFY_ARRAY, arrayType)) {
+				return;
+			}
+			final int site = this.host.newSite(EventKind.MODIFY_ARRAY, arrayType, null, arrayType.substring(1), -1);
+			final Label skip = this.host.beginHook(EventKind.MODIFY_ARRAY, site);
 			if (valSize == 1) {
 				// .. arr, idx, val
-				super.visitInsn(DUP_X2);
-				super.visitInsn(POP);
+				this.host.visitInsn(DUP_X2);
+				this.host.visitInsn(POP);
 				// .. val, arr, idx
 			} else {
 				// .. arr, idx, val1, val2
-				super.visitInsn(DUP2_X2);
-				super.visitInsn(POP2);
+				this.host.visitInsn(DUP2_X2);
+				this.host.visitInsn(POP2);
 				// .. val1, val2, arr, idx
 			}
 			// .. [val1, val2 | val], arr, idx
-			super.visitInsn(DUP2);
+			this.host.visitInsn(DUP2);
 			// .. [val1, val2 | val], arr, idx, arr, idx
-			this.pushThisKindAndObj();
+			this.host.pushThisKindAndObj();
 			// .. [val1, val2 | val], arr, idx, arr, idx, kind, caller
-			this.pushCallerClassStr();
-			// .. [val1, val2 | val], arr, idx, arr, idx, kind, caller, callerClass
-			super.visitMethodInsn(INVOKESTATIC,
-					"NativeInterface", "modifyArray", "("
+			this.host.pushInt(site);
+			// .. [val1, val2 | val], arr, idx, arr, idx, kind, caller, site
+			this.host.emitEventHook("modifyArray", "("
 							+ "Ljava/lang/Object;"  // arr
 							+ "I"                   // idx
 							+ "I"                   // callerValKind
 							+ "Ljava/lang/Object;"  // caller
-							+ "Ljava/lang/String;"  // callerClass
-							+")V",
-							false);
+							+ "I"                   // site
+							+")V");
 			if (valSize == 1) {
 				// .. val, arr, idx
-				super.visitInsn(DUP2_X1);
-				super.pop2();
+				this.host.visitInsn(DUP2_X1);
+				this.host.pop2();
 			} else {
 				// .. val1, val2, arr, idx
-				super.visitInsn(DUP2_X2);
-				super.visitInsn(POP2);
+				this.host.visitInsn(DUP2_X2);
+				this.host.visitInsn(POP2);
 			}
+			this.host.endHook(skip);
 		}
 
 		private void emitStoreArrayA() {
-			final List<Object> stack = ((AnalyzerAdapter)mv).stack;
+			final List<Object> stack = this.host.analyzer.stack;
 			String holderClass;
 			if (stack != null) {
 				holderClass = (String)stack.get(stack.size()-3);
 			} else {
-//				runtimeWarning("this code should be unreachable (stack is null)");
+//				this.host.runtimeWarning("this code should be unreachable (stack is null)");
 				holderClass = "[Ljava/lang/Object;";
 			}
 			if (! holderClass.startsWith("[") && stack != null) {
 				throw new IllegalStateException("callee class must be an array!");
 			}
+			final int site = this.host.newSite(EventKind.STORE_ARRAY_A, holderClass, null, holderClass.substring(1), -1);
+			final Label skip = this.host.beginHook(EventKind.STORE_ARRAY_A, site);
 			// .. arr, idx, newVal
-			super.visitInsn(DUP_X2);
+			this.host.visitInsn(DUP_X2);
 			// .. newVal, arr, idx, newVal
-			super.visitInsn(DUP_X2);
-			super.visitInsn(POP);
+			this.host.visitInsn(DUP_X2);
+			this.host.visitInsn(POP);
 			// .. newVal, newVal, arr, idx
-			super.visitInsn(DUP2_X2);
+			this.host.visitInsn(DUP2_X2);
 			// .. arr, idx, newVal, newVal, arr, idx
-			super.visitInsn(DUP2);
-			super.visitInsn(AALOAD);
+			this.host.visitInsn(DUP2);
+			this.host.visitInsn(AALOAD);
 			// .. arr, idx, newVal, newVal, arr, idx, oldVal
-			this.visitLdcInsn(holderClass);
-			this.pushMethodNameStr();
-			this.pushCallerClassStr();
-			this.pushThisKindAndObj();
-			// .. arr, idx, newVal, newVal, arr, idx, oldVal, holderClass, methName, callerClass, callerKind, caller
-			super.visitMethodInsn(INVOKESTATIC, "NativeInterface", "storeArrayA", "("
+			this.host.pushThisKindAndObj();
+			// .. arr, idx, newVal, newVal, arr, idx, oldVal, callerKind, caller
+			this.host.pushInt(site);
+			// .. arr, idx, newVal, newVal, arr, idx, oldVal, callerKind, caller, site
+			this.host.emitEventHook("storeArrayA", "("
 					+"Ljava/lang/Object;"  // newVal
 					+"[Ljava/lang/Object;" // arr
 					+"I"                   // idx
 					+"Ljava/lang/Object;"  // oldVal
-					+"Ljava/lang/String;"  // holderClass,
-					+"Ljava/lang/String;"  // callerMethod,
-					+"Ljava/lang/String;"  // callerClass,
 					+"I"                   // callerValKind,
 					+"Ljava/lang/Object;"  // caller,
-					+")V", false);
+					+"I"                   // site
+					+")V");
+			this.host.endHook(skip);
 		}
 
 		private void emitLoadArrayA() {
-			final List<Object> stack = ((AnalyzerAdapter)mv).stack;
+			final List<Object> stack = this.host.analyzer.stack;
 			String holderClass;
 			if (stack != null) {
 				holderClass = (String)stack.get(stack.size()-2);
 			} else {
-//				runtimeWarning("this code should be unreachable (stack is null)");
+//				this.host.runtimeWarning("this code should be unreachable (stack is null)");
 				holderClass = "[Ljava/lang/Object;";
 			}
 			if (! holderClass.startsWith("[") && stack != null) {
 				throw new IllegalStateException("callee class must be an array!");
 			}
+			if (this.host.inRange(EventKind.LOAD_ARRAY_A, holderClass)) {
+				return;
+			}
+			final int site = this.host.newSite(EventKind.LOAD_ARRAY_A, holderClass, null, holderClass.substring(1), -1);
+			final Label skip = this.host.beginHook(EventKind.LOAD_ARRAY_A, site);
 			// .. arrayref, index
-			super.visitInsn(DUP2);
+			this.host.visitInsn(DUP2);
 			// .. arrayref, index, arrayref, index
-			super.visitInsn(DUP2);
-			super.visitInsn(AALOAD);
+			this.host.visitInsn(DUP2);
+			this.host.visitInsn(AALOAD);
 			// .. arrayref, index, arrayref, index, val
-			this.visitLdcInsn(holderClass);
-			// .. arrayref, index, arrayref, index, val, holderClass
-			this.visitLdcInsn(this.getMethodName());
-			// .. arrayref, index, arrayref, index, val, holderClass, callerMethod
-			this.pushCallerClassStr();
-			// .. arrayref, index, arrayref, index, val, holderClass, callerMethod, callerClass
-			this.pushThisKindAndObj();
-			// .. arrayref, index, arrayref, index, val, holderClass, callerMethod, callerClass, callerValKind, caller
-			super.visitMethodInsn(INVOKESTATIC, "NativeInterface", "loadArrayA",
+			this.host.pushThisKindAndObj();
+			// .. arrayref, index, arrayref, index, val, callerValKind, caller
+			this.host.pushInt(site);
+			// .. arrayref, index, arrayref, index, val, callerValKind, caller, site
+			this.host.emitEventHook("loadArrayA",
 					"("
 							+ "[Ljava/lang/Object;"// arr
 							+ "I" 				   // idx
 							+ "Ljava/lang/Object;" // val
-							+ "Ljava/lang/String;" // holderClass
-							+ "Ljava/lang/String;" // callerMethod
-							+ "Ljava/lang/String;" // callerClass
 							+ "I"                  // callerValKind
 							+ "Ljava/lang/Object;" // caller
-							+")V",
-							false);
+							+ "I"                  // site
+							+")V");
+			this.host.endHook(skip);
 		}
 
 
@@ -549,22 +1249,28 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 		public void visitFieldInsn(int opcode, String owner, String name,
 				String desc) {
 			if (name.contains("$")) {
-				comment("skipping access to synthetic field: '" + name + "'");
+				this.host.comment("skipping access to synthetic field: '" + name + "'");
 			} else {
 				// when stack is null, the insn is unreachable
-				if (this.analyzer.stack != null) {
+				if (this.host.analyzer.stack != null) {
+					if (this.host.countAccess(fieldEventKind(opcode, desc), owner, name, desc)) {
+						return;
+					}
 					boolean fieldIsStatic = false;
 					switch (opcode) {
 					case GETSTATIC:
 						fieldIsStatic = true;
 					case GETFIELD:
 					{
+						if (this.host.skipRedundantLoad()) {
+							break;
+						}
 						if (isObjectType(desc) || isArrayType(desc)) {
-							if ((this.analyzer.stack.size() > 0 && this.analyzer.stack.get(0)!=UNINITIALIZED_THIS) ||
-									this.analyzer.stack.size() == 0) {
+							if ((this.host.analyzer.stack.size() > 0 && this.host.analyzer.stack.get(0)!=UNINITIALIZED_THIS) ||
+									this.host.analyzer.stack.size() == 0) {
 								this.emitLoadFieldACode(owner, name, desc, fieldIsStatic);
 							} else {
-//								runtimeWarning("not instrumenting field '"+name+"' due to being loaded before super(...) call.");
+//								this.host.runtimeWarning("not instrumenting field '"+name+"' due to being loaded before super(...) call.");
 							}
 						} else {
 							emitReadCode(owner, name, desc, fieldIsStatic);
@@ -576,7 +1282,7 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 					case PUTFIELD: {
 						if (isObjectType(desc) || isArrayType(desc)) {
 							// the field is a reference type
-							comment("Setting up call to STOREFIELD("
+							this.host.comment("Setting up call to STOREFIELD("
 									+ (fieldIsStatic ? "static"
 											: "non-static") + "), field name: " + name);
 							emitStoreFieldACode(owner, name, desc,
@@ -591,7 +1297,15 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 					}
 				}
 			}
-			super.visitFieldInsn(opcode, owner, name, desc);
+		}
+
+		private int fieldEventKind(int opcode, String desc) {
+			final boolean ref = isObjectType(desc) || isArrayType(desc);
+			if (opcode == GETFIELD || opcode == GETSTATIC) {
+				return ref ? EventKind.LOAD_FIELD_A : EventKind.READ;
+			} else {
+				return ref ? EventKind.STORE_FIELD_A : EventKind.MODIFY;
+			}
 		}
 
 		private void emitReadCode(String owner, String name, String desc,
@@ -608,192 +1322,163 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 				boolean fieldIsStatic, boolean read) {
 			// the field is a primitive type
 			final String opName = (read)?"read":"modify";
-			comment("Setting up call to "+opName+"ing "+name+" ("
+			this.host.comment("Setting up call to "+opName+"ing "+name+" ("
 					+ desc + ")");
 			//			System.out.println("emitting "+opName+": "+owner+", "+name+", "+desc+", "+((fieldIsStatic)?"static":"not static"));
+			final int kind = read ? EventKind.READ : EventKind.MODIFY;
+			final int site = this.host.newSite(kind, owner, name, desc, -1);
+			final Label skip = this.host.beginHook(kind, site);
 			// stack: .. callee newVal?
 			if (!read && !fieldIsStatic) {
 				//we ALSO have the new value on the stack
 				// stack: .. callee newVal
-				this.comment("top:"+this.analyzer.stack.get(this.analyzer.stack.size()-1));
-				this.swap(Type.getType("Ljava/lang/Object;"),Type.getType(desc));
+				this.host.comment("top:"+this.host.analyzer.stack.get(this.host.analyzer.stack.size()-1));
+				this.host.swap(Type.getType("Ljava/lang/Object;"),Type.getType(desc));
 			}
 			// stack: .. newVal? callee
 			// Object calleeValKind, callee
 			if (!fieldIsStatic) {
-				super.visitInsn(DUP); // callee, callee
-				super.visitLdcInsn(Instrument.SPECIAL_VAL_NORMAL); // callee, newval, callee, SPECIAL_VAL_NORMAL
-				super.visitInsn(SWAP); // callee, newval, SPECIAL_VAL_NORMAL, callee
+				this.host.visitInsn(DUP); // callee, callee
+				this.host.visitLdcInsn(Instrument.SPECIAL_VAL_NORMAL); // callee, newval, callee, SPECIAL_VAL_NORMAL
+				this.host.visitInsn(SWAP); // callee, newval, SPECIAL_VAL_NORMAL, callee
 			} else {
-				super.visitLdcInsn(Instrument.SPECIAL_VAL_STATIC);
-				super.visitInsn(ACONST_NULL);
+				this.host.visitLdcInsn(Instrument.SPECIAL_VAL_STATIC);
+				this.host.visitInsn(ACONST_NULL);
 			}
 			// stack: .. newVal?, callee, calleeValKind, callee
-			// String calleeclass,
-			super.visitLdcInsn(owner);
-			// String fname
-			super.visitLdcInsn(name);
 			// int callerValKind, Object caller,
-			pushThisKindAndObj();
-			// String callerclass,
-			pushCallerClassStr();
-			super.visitMethodInsn(INVOKESTATIC,
-					"NativeInterface", opName, "("
-							+ "I"
-							+ "Ljava/lang/Object;"
-							+ "Ljava/lang/String;"
-							+ "Ljava/lang/String;"
-							+ "I"
-							+ "Ljava/lang/Object;"
-							+ "Ljava/lang/String;"
-							+")V",
-							false);
+			this.host.pushThisKindAndObj();
+			// int site
+			this.host.pushInt(site);
+			this.host.emitEventHook(opName, "("
+							+ "I"                  // calleeValKind
+							+ "Ljava/lang/Object;" // callee
+							+ "I"                  // callerValKind
+							+ "Ljava/lang/Object;" // caller
+							+ "I"                  // site
+							+")V");
 			if (!read && !fieldIsStatic) {
-				this.swap(Type.getType(desc),Type.getType("Ljava/lang/Object;"));
+				this.host.swap(Type.getType(desc),Type.getType("Ljava/lang/Object;"));
 			}
-			comment("done with call to "+opName);
+			this.host.endHook(skip);
+			this.host.comment("done with call to "+opName);
 		}
 
 		private void emitLoadFieldACode(String holderClass, String fName,
 				String type, boolean fieldIsStatic) {
+			final int site = this.host.newSite(EventKind.LOAD_FIELD_A, holderClass, fName, type, -1);
+			final Label skip = this.host.beginHook(EventKind.LOAD_FIELD_A, site);
 			if (fieldIsStatic) {
 
 				//Object value,
-				super.visitFieldInsn(GETSTATIC, holderClass, fName, type);
+				this.host.visitFieldInsn(GETSTATIC, holderClass, fName, type);
 				//int holderValKind,
-				super.visitLdcInsn(Instrument.SPECIAL_VAL_STATIC);
+				this.host.visitLdcInsn(Instrument.SPECIAL_VAL_STATIC);
 				//Object holder,
-				super.visitInsn(ACONST_NULL);
-				//String holderClass,
-				super.visitLdcInsn(holderClass);
-				//String fieldName,
-				super.visitLdcInsn(fName);
-				//String type,
-				super.visitLdcInsn(type);
-				//String callerClass,
-				this.pushCallerClassStr();
-				//String callerMethod,
-				this.pushMethodNameStr();
+				this.host.visitInsn(ACONST_NULL);
 				//int callerValKind, Object caller,
-				this.pushThisKindAndObj();
-				super.visitMethodInsn(INVOKESTATIC, "NativeInterface", "loadFieldA",
+				this.host.pushThisKindAndObj();
+				//int site
+				this.host.pushInt(site);
+				this.host.emitEventHook("loadFieldA",
 						"("+
 								"Ljava/lang/Object;"   // val
 								+ "I"                  // holderValKind
 								+ "Ljava/lang/Object;" // holder
-								+ "Ljava/lang/String;" // holderclass
-								+ "Ljava/lang/String;" // fname
-								+ "Ljava/lang/String;" // type
-								+ "Ljava/lang/String;" // callerclass
-								+ "Ljava/lang/String;" // callermethod
 								+ "I"                  // callerValkind
 								+ "Ljava/lang/Object;" // caller
-								+")V",
-								false);
+								+ "I"                  // site
+								+")V");
 
 			} else {
 				//..holder
-//				System.out.println("..holder "+((AnalyzerAdapter)mv).stack);
-				if (this.analyzer.stack.get(this.analyzer.stack.size()-1) != UNINITIALIZED_THIS) {
-					super.visitInsn(DUP);//..holder,holder
-					super.visitFieldInsn(Opcodes.GETFIELD, holderClass, fName, type);//..holder,val
-					super.visitInsn(DUP2); //..holder,val,holder,val
-					super.visitInsn(POP);  //..holder,val,holder
-					super.visitLdcInsn(Instrument.SPECIAL_VAL_NORMAL); //..holder,val,holder,SPECIAL_VAL_NORMAL
-					super.visitInsn(SWAP); //..holder,val,SPECIAL_VAL_NORMAL,holder
+//				System.out.println("..holder "+this.host.analyzer.stack);
+				if (this.host.analyzer.stack.get(this.host.analyzer.stack.size()-1) != UNINITIALIZED_THIS) {
+					this.host.visitInsn(DUP);//..holder,holder
+					this.host.visitFieldInsn(Opcodes.GETFIELD, holderClass, fName, type);//..holder,val
+					this.host.visitInsn(DUP2); //..holder,val,holder,val
+					this.host.visitInsn(POP);  //..holder,val,holder
+					this.host.visitLdcInsn(Instrument.SPECIAL_VAL_NORMAL); //..holder,val,holder,SPECIAL_VAL_NORMAL
+					this.host.visitInsn(SWAP); //..holder,val,SPECIAL_VAL_NORMAL,holder
 //					System.out.println("was init");
 				} else {
-					super.visitInsn(DUP);//..holder,holder
-					super.visitFieldInsn(Opcodes.GETFIELD, holderClass, fName, type);//..holder,val
+					this.host.visitInsn(DUP);//..holder,holder
+					this.host.visitFieldInsn(Opcodes.GETFIELD, holderClass, fName, type);//..holder,val
 					//..holder,val
-					super.visitLdcInsn(Instrument.SPECIAL_VAL_THIS); //..holder,val,SPECIAL_VAL_THIS
-					super.visitInsn(ACONST_NULL);                    //..holder,val,SPECIAL_VAL_THIS,NULL
+					this.host.visitLdcInsn(Instrument.SPECIAL_VAL_THIS); //..holder,val,SPECIAL_VAL_THIS
+					this.host.visitInsn(ACONST_NULL);                    //..holder,val,SPECIAL_VAL_THIS,NULL
 					System.out.println("was uninit");
 				}
-				//..holder,val,SPECIAL_VAL_xxx,NULL|holder,holder
-				final String mName = this.getMethodName();
-				final String loc = this.getLastVisitedLocation();
-
-				super.visitLdcInsn(holderClass); //..holder,val,SPECIAL_VAL_xxx,NULL|holder,holderclass
-				super.visitLdcInsn(fName);       //..holder,val,SPECIAL_VAL_xxx,NULL|holder,holderclass,fname
-				super.visitLdcInsn(type);        //..holder,val,SPECIAL_VAL_xxx,NULL|holder,holderclass,fname,type
-				pushCallerClassStr();            //..holder,val,SPECIAL_VAL_xxx,NULL|holder,holderclass,fname,type,callerclass
-				pushMethodNameStr();             //..holder,val,SPECIAL_VAL_xxx,NULL|holder,holderclass,fname,type,callerclass,mname
-				pushThisKindAndObj();            //..holder,val,SPECIAL_VAL_xxx,NULL|holder,holderclass,fname,type,callerclass,mname,thiskind,this
-				mv.visitMethodInsn(INVOKESTATIC,
-						"NativeInterface", "loadFieldA",
+				//..holder,val,SPECIAL_VAL_xxx,NULL|holder
+				this.host.pushThisKindAndObj();            //..holder,val,SPECIAL_VAL_xxx,NULL|holder,thiskind,this
+				this.host.pushInt(site);              //..holder,val,SPECIAL_VAL_xxx,NULL|holder,thiskind,this,site
+				this.host.emitEventHook("loadFieldA",
 						"("
 								+ "Ljava/lang/Object;" // val
 								+ "I"                  // holderValKind
 								+ "Ljava/lang/Object;" // holder
-								+ "Ljava/lang/String;" // holderclass
-								+ "Ljava/lang/String;" // fname
-								+ "Ljava/lang/String;" // type
-								+ "Ljava/lang/String;" // callerclass
-								+ "Ljava/lang/String;" // callermethod
 								+ "I"                  // callerValkind
 								+ "Ljava/lang/Object;" // caller
-								+")V",
-								false);
-				comment("done with call to LOADFIELD");
+								+ "I"                  // site
+								+")V");
+				this.host.comment("done with call to LOADFIELD");
 
 			}
-		}
-
-		private void pushMethodNameStr() {
-			super.visitLdcInsn(this.getMethodName());
+			this.host.endHook(skip);
 		}
 
 		private void emitStoreFieldACode(String owner, String name,
 				String desc, boolean fieldIsStatic) {
+			final int site = this.host.newSite(EventKind.STORE_FIELD_A, owner, name, desc, -1);
+			final Label skip = this.host.beginHook(EventKind.STORE_FIELD_A, site);
 			if (!fieldIsStatic) {
 				if ("barbar".equals(name)) {
-					System.out.println("here we go"+this.getMethodName());
+					System.out.println("here we go"+this.host.getMethodName());
 				}
 				// STACK: .. ownerobj, newval
-				final Object newValType = ((AnalyzerAdapter)this.mv).stack
-						.get(((AnalyzerAdapter)this.mv).stack.size() - 1);
+				final Object newValType = this.host.analyzer.stack
+						.get(this.host.analyzer.stack.size() - 1);
 				if (newValType != UNINITIALIZED_THIS) {
-//				if (! "<init>".equals(this.getMethodName())) {
-					comment("target is not uninit_this");
-					comment("stack=" + this.analyzer.stack);
-					super.visitInsn(DUP2);
+//				if (! "<init>".equals(this.host.getMethodName())) {
+					this.host.comment("target is not uninit_this");
+					this.host.comment("stack=" + this.host.analyzer.stack);
+					this.host.visitInsn(DUP2);
 					// STACK: .. ownerobj, newval, ownerobj, newval
-					super.visitLdcInsn(Instrument.SPECIAL_VAL_NORMAL);
+					this.host.visitLdcInsn(Instrument.SPECIAL_VAL_NORMAL);
 					// STACK: .. ownerobj, newval, ownerobj, newval, SPECIAL_VAL_NORMAL
-					super.visitInsn(DUP_X2);
+					this.host.visitInsn(DUP_X2);
 					// STACK: .. ownerobj, newval, SPECIAL_VAL_NORMAL, ownerobj, newval, SPECIAL_VAL_NORMAL
-					super.visitInsn(POP);
+					this.host.visitInsn(POP);
 					// STACK: .. ownerobj, newval, SPECIAL_VAL_NORMAL, ownerobj, newval
 				} else {
-					super.dup();
-//		ARST		super.dup();
-					super.visitInsn(ACONST_NULL);
+					this.host.dup();
+//		ARST		this.host.dup();
+					this.host.visitInsn(ACONST_NULL);
 					// STACK: .. ownerobj, newval, newval, newval, null
-					super.swap();
+					this.host.swap();
 					// STACK: .. ownerobj, newval, newval, null, newval
-					super.visitLdcInsn(Instrument.SPECIAL_VAL_THIS);
+					this.host.visitLdcInsn(Instrument.SPECIAL_VAL_THIS);
 					// STACK: .. ownerobj, newval, newval, null, newval, SPECIAL_VAL_THIS
-					super.dupX2();
+					this.host.dupX2();
 					// STACK: .. ownerobj, newval, newval, SPECIAL_VAL_THIS, null, newval, SPECIAL_VAL_THIS					
-					super.pop();
+					this.host.pop();
 					// STACK: .. ownerobj, newval, newval, SPECIAL_VAL_THIS, null, newval
 				}
 				// STACK: .. ownerobj, newval, holderkind,
 				// holderobj, newval
 				// Object old_val:
-				if (this.getMethodName().equals("<init>")) {
-					super.visitInsn(ACONST_NULL);
+				if (this.host.getMethodName().equals("<init>")) {
+					this.host.visitInsn(ACONST_NULL);
 				} else {
-					if (this.analyzer.stack
-							.get(this.analyzer.stack.size() - 2) != UNINITIALIZED_THIS) {
-						super.visitInsn(DUP2);
-						super.visitInsn(POP);
-						super.visitFieldInsn(GETFIELD,
+					if (this.host.analyzer.stack
+							.get(this.host.analyzer.stack.size() - 2) != UNINITIALIZED_THIS) {
+						this.host.visitInsn(DUP2);
+						this.host.visitInsn(POP);
+						this.host.visitFieldInsn(GETFIELD,
 								owner, name, desc);
 					} else {
 						throw new RuntimeException("can't instrument putfield's old_val (is `this`)");
-						//											super.visitInsn(ACONST_NULL);
+						//											this.host.visitInsn(ACONST_NULL);
 					}
 				}
 				// STACK: .. ownerobj, newval,
@@ -802,38 +1487,30 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 			} else {
 				// STACK: .. newval
 				// Object holder + Object newval:
-				super.visitInsn(DUP);
-				super.visitInsn(ACONST_NULL);
-				super.visitInsn(SWAP);
+				this.host.visitInsn(DUP);
+				this.host.visitInsn(ACONST_NULL);
+				this.host.visitInsn(SWAP);
 				// STACK: .. newval ownerobj=NULL newval
 
 				// holderKind
-				super.visitLdcInsn(Instrument.SPECIAL_VAL_STATIC);
+				this.host.visitLdcInsn(Instrument.SPECIAL_VAL_STATIC);
 				// STACK: .. newval ownerobj=NULL newval
 				// SPECIAL_VAL_STATIC
-				super.visitInsn(DUP_X2);
-				super.visitInsn(POP);
+				this.host.visitInsn(DUP_X2);
+				this.host.visitInsn(POP);
 				// STACK: .. newval SPECIAL_VAL_STATIC
 				// ownerobj=NULL newval
 
 				// Object old_val
-				super.visitFieldInsn(GETSTATIC, owner,
+				this.host.visitFieldInsn(GETSTATIC, owner,
 						name, desc);
 				// STACK: .. newval SPECIAL_VAL_STATIC
 				// ownerobj=NULL newval oldval
 			}
-			// String holderclass
-			super.visitLdcInsn(owner);
-			// String fname
-			super.visitLdcInsn(name);
-			// String type
-			super.visitLdcInsn(desc);
-			// String callerclass
-			pushCallerClassStr();
-			// String callermethod
-			pushMethodNameStr();
 			// Object caller
-			pushThisKindAndObj();
+			this.host.pushThisKindAndObj();
+			// int site
+			this.host.pushInt(site);
 
 			// String fieldDesc;
 			// String methodSuffix;
@@ -862,128 +1539,120 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 			// "don't know what overloading of storeField to call for desc="
 			// + desc);
 			// }
-			super.visitMethodInsn(INVOKESTATIC,
-					"NativeInterface", "storeFieldA",
+			this.host.emitEventHook("storeFieldA",
 					"("
 							+ "I"                  // holderValKind
 							+ "Ljava/lang/Object;" // holder
 							+ "Ljava/lang/Object;" // newval
 							+ "Ljava/lang/Object;" // oldval
-							+ "Ljava/lang/String;" // holderclass
-							+ "Ljava/lang/String;" // fname
-							+ "Ljava/lang/String;" // type
-							+ "Ljava/lang/String;" // callerclass
-							+ "Ljava/lang/String;" // callermethod
 							+ "I"                  // callerValkind
 							+ "Ljava/lang/Object;" // caller
-							+")V",
-							false);
-			comment("done with call to STOREFIELD");
+							+ "I"                  // site
+							+")V");
+			this.host.endHook(skip);
+			this.host.comment("done with call to STOREFIELD");
 		}
 
 		//		@Override
 		//		public void visitMaxs(int stack, int locals) {
 		//			// overapproximation
-		//			super.visitMaxs(stack + 40, locals + 10);
+		//			this.host.visitMaxs(stack + 40, locals + 10);
 		//		}
 	}
 
-	private class MethodMV extends InstrumentationMV {
-
-		public MethodMV(MethodVisitor mv, String classDescr, String name,
-				int access, String sig) {
-			super(mv, classDescr, name, access, sig);
+	private class MethodEmitter extends Emitter {
+		MethodEmitter(InstrumentationMV host) {
+			super(host);
 		}
 
 		@Override
 		public void onMethodEnter() {
-			if ("<init>".equals(this.getMethodName())) {
-				this.visitVarInsn(ALOAD,0);
-				super.visitLdcInsn(this.getClassDescr());
-				super.visitMethodInsn(INVOKESTATIC, "NativeInterface",
-						"afterInitMethod",
+			final Label skip = this.host.beginHook();
+			if ("<init>".equals(this.host.getMethodName())) {
+				this.host.visitVarInsn(ALOAD,0);
+				this.host.pushSite(EventKind.AFTER_INIT, this.host.getClassDescr(), null, null, -1);
+				this.host.emitEventHook("afterInitMethod",
 						"(Ljava/lang/Object;" 
-								+ "Ljava/lang/String;"
-								+")V",
-								false);
+								+ "I"
+								+")V");
 			}
 			emitMethodEnter();
+			this.host.endHook(skip);
 		}
 
 		private void emitMethodEnter() {
-			comment("setting up call to METHODENTER "+this.getClassDescr()+"::"+this.getMethodName()+this.getMethodSignature());
+			this.host.comment("setting up call to METHODENTER "+this.host.getClassDescr()+"::"+this.host.getMethodName()+this.host.getMethodSignature());
 			// ///// generate call to `methodEnter`
-			// String name
-			super.visitLdcInsn(this.getMethodName());
-			// String signature
-			if (this.getMethodSignature() == null) {
-				super.visitLdcInsn("<none available>");
-			} else {
-				super.visitLdcInsn(this.getMethodSignature());
-			}
-
-			// String calleeclass
-			super.visitLdcInsn(InstrumentationVisitor.this.classname);
 			// Object calleeValKind, callee
-			pushThisKindAndObj();
-			pushReftypeArgs();
+			this.host.pushThisKindAndObj();
+			final int argc = pushReftypeArgs();
+			// int site
+			this.host.pushSite(EventKind.METHOD_ENTER, InstrumentationVisitor.this.classname, this.host.getMethodName(),
+					(this.host.getMethodSignature() == null) ? "<none available>" : this.host.getMethodSignature(), -1);
 			// call methodEnter:
-			super.visitMethodInsn(INVOKESTATIC, "NativeInterface",
-					"methodEnter", "(Ljava/lang/String;" // name
-					+ "Ljava/lang/String;"   // signature
-					+ "Ljava/lang/String;"   // calleeclass
-					+ "I"                    // calleeValKind
-					+ "Ljava/lang/Object;"   // callee
-					+ "[Ljava/lang/Object;"  // args
-					+")V" // thread
-					, false);
+			if (argc <= EventKind.ENTER_ARGS) {
+				final StringBuilder desc = new StringBuilder("(ILjava/lang/Object;");
+				for (int i = 0; i < argc; ++i) {
+					desc.append("Ljava/lang/Object;");
+				}
+				this.host.emitEventHook("methodEnter"+argc, desc.append("I)V").toString());
+			} else {
+				this.host.emitEventHook("methodEnter", "("
+						+ "I"                    // calleeValKind
+						+ "Ljava/lang/Object;"   // callee
+						+ "[Ljava/lang/Object;"  // args
+						+ "I"                    // site
+						+")V");
+			}
 		}
 
-		private void pushReftypeArgs() {
-			final List<Type> params = Arrays.asList(Type.getArgumentTypes(this.getMethodSignature()));
-			comment("loading reftype args locals="+params);
-			
-			if (params == null) {
-				// this location is unreachable!
-				super.visitLdcInsn(0);
-				super.visitTypeInsn(ANEWARRAY, "java/lang/Object");
-				return;
+		/**
+		 * Pushes the reference typed arguments, either one by one, or (if there
+		 * are more than EventKind.ENTER_ARGS of them) in an array.
+		 *
+		 * @return the number of reference typed arguments
+		 */
+		private int pushReftypeArgs() {
+			final Type[] params = Type.getArgumentTypes(this.host.getMethodSignature());
+			this.host.comment("loading reftype args locals="+Arrays.toString(params));
+			int argc = 0;
+			for (Type type : params) {
+				if (isReference(type)) {
+					argc++;
+				}
 			}
-			final int firstParam = this.isStatic() ? 0 : 1;
-			// we make an array that's large enough for 'this', but 'this' will always be
-			// null. This allows the native interface to recover the original var index
-			// easily:
-			super.visitLdcInsn(params.size() + (this.isStatic() ? 0 : 1));
-			int doubleSizeVars = 0;
-			super.visitTypeInsn(ANEWARRAY, "java/lang/Object");
-			for (int slot = 0; slot < params.size(); ++slot) {
-				Type type = params.get(slot);
-				super.visitInsn(DUP);
-				super.visitIntInsn(SIPUSH, firstParam+slot);
-				if (type instanceof Type) {
-					if (type.toString().length() == 1 /*it's a primitive*/) {
-						super.visitInsn(ACONST_NULL);
-					} else {
-						super.visitVarInsn(ALOAD, firstParam+slot+doubleSizeVars);
+			final boolean inArray = argc > EventKind.ENTER_ARGS;
+			if (inArray) {
+				this.host.pushInt(argc);
+				this.host.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+			}
+			int local = this.host.isStatic() ? 0 : 1;
+			int idx = 0;
+			for (Type type : params) {
+				if (isReference(type)) {
+					if (inArray) {
+						this.host.visitInsn(DUP);
+						this.host.pushInt(idx);
 					}
-					if (((Type)type).getSize() == 2) {
-						doubleSizeVars++;
+					this.host.visitVarInsn(ALOAD, local);
+					if (inArray) {
+						this.host.visitInsn(AASTORE);
 					}
-				} else {
-					comment("type "+type+" is not a string, it's a "+type.getClass());
-					super.visitInsn(ACONST_NULL);
+					idx++;
 				}
-				super.visitInsn(AASTORE);
+				local += type.getSize();
 			}
-			comment("loading reftype args: done");
+			this.host.comment("loading reftype args: done");
+			return argc;
 		}
-		/* (non-Javadoc)
-		 * @see org.objectweb.asm.commons.AdviceAdapter#visitIntInsn(int, int)
-		 */
+
+		private boolean isReference(Type type) {
+			return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+		}
+
 		@Override
-		public void visitIntInsn(int opcode, int operand) {
+		public void afterIntInsn(int opcode, int operand) {
 			// fake ctor call to primitive array
-			super.visitIntInsn(opcode, operand);
 			if (opcode == NEWARRAY) {
 				String arrayType;
 				switch (operand) {
@@ -1014,81 +1683,52 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 				default:
 					throw new IllegalArgumentException("don't understand primitive type operand "+operand);
 				}
-				super.visitInsn(DUP);
-				super.visitLdcInsn("[Ljava/lang/Object;");
-				super.visitMethodInsn(INVOKESTATIC, "NativeInterface",
-						"afterInitMethod",
-						"(Ljava/lang/Object;" 
-								+ "Ljava/lang/String;"
-								+")V",
-								false);
-				super.visitLdcInsn("<init>");
-				super.visitLdcInsn("(I)V");
-				this.visitLdcInsn(arrayType);
-				this.visitLdcInsn(Instrument.SPECIAL_VAL_THIS);
-				this.visitInsn(ACONST_NULL);
-				this.visitInsn(ACONST_NULL);
-				super.visitMethodInsn(INVOKESTATIC, "NativeInterface",
-						"methodEnter", 
-						"(Ljava/lang/String;"    // name
-						+ "Ljava/lang/String;"   // signature
-						+ "Ljava/lang/String;"   // calleeclass
-						+ "I"                    // calleeValKind
-						+ "Ljava/lang/Object;"   // callee
-						+ "[Ljava/lang/Object;"  // args
-						+")V" // thread
-						, false);
+				this.emitArrayInit(arrayType);
 			}
 		}
 
 		@Override
-		public void visitTypeInsn(final int opcode, final String type) {
-			super.visitTypeInsn(opcode, type);
+		public void afterTypeInsn(final int opcode, final String type) {
 			switch (opcode) {
 			case ANEWARRAY:
-				super.visitInsn(DUP);
-				super.visitLdcInsn("[Ljava/lang/Object;");
-				super.visitMethodInsn(INVOKESTATIC, "NativeInterface",
-						"afterInitMethod",
-						"(Ljava/lang/Object;" 
-								+ "Ljava/lang/String;"
-								+")V",
-								false);
-				super.visitLdcInsn("<init>");
-				super.visitLdcInsn("(I)V");
 				if (isArrayType(type)) {
-					this.visitLdcInsn("["+type+";");
+					this.emitArrayInit("["+type+";");
 				} else {
-					this.visitLdcInsn("[L"+type+";");
+					this.emitArrayInit("[L"+type+";");
 				}
-				this.visitLdcInsn(Instrument.SPECIAL_VAL_THIS);
-				this.visitInsn(ACONST_NULL);
-				this.visitInsn(ACONST_NULL);
-				super.visitMethodInsn(INVOKESTATIC, "NativeInterface",
-						"methodEnter", 
-						"(Ljava/lang/String;"    // name
-						+ "Ljava/lang/String;"   // signature
-						+ "Ljava/lang/String;"   // calleeclass
-						+ "I"                    // calleeValKind
-						+ "Ljava/lang/Object;"   // callee
-						+ "[Ljava/lang/Object;"  // args
-						+")V" // thread
-						, false);
 			}
 		}
-	}
 
-	private class VarMV extends InstrumentationMV {
+		// fake ctor call for a freshly created array that is on top of the stack
+		private void emitArrayInit(String arrayType) {
+			final Label skip = this.host.beginHook();
+			this.host.visitInsn(DUP);
+			this.host.pushSite(EventKind.AFTER_INIT, "[Ljava/lang/Object;", null, null, -1);
+			this.host.emitEventHook("afterInitMethod",
+					"(Ljava/lang/Object;" 
+							+ "I"
+							+")V");
+			this.host.visitLdcInsn(Instrument.SPECIAL_VAL_THIS);
+			this.host.visitInsn(ACONST_NULL);
+			this.host.pushSite(EventKind.METHOD_ENTER, arrayType, "<init>", "(I)V", -1);
+			this.host.emitEventHook("methodEnter0", "("
+					+ "I"                    // calleeValKind
+					+ "Ljava/lang/Object;"   // callee
+					+ "I"                    // site
+					+")V");
+			this.host.endHook(skip);
+		}
+	}
 
-		public VarMV(MethodVisitor mv, String classDescr, String name,
-				int access, String sig) {
-			super(mv, classDescr, name, access, sig);
+	private class VarEmitter extends Emitter {
+		VarEmitter(InstrumentationMV host) {
+			super(host);
 		}
 
 		@Override
 		public void visitVarInsn(int opcode, int var) {
 			/*
-			 * if (getMethodName().equals("<init>")) {
+			 * if (this.host.getMethodName().equals("<init>")) {
 			 * warning("skipping (STORE|LOAD)VAR due to being in constructor");
 			 * } else
 			 */{
@@ -1103,31 +1743,26 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 				 case DLOAD:
 					 break;
 				 case ALOAD:
-					 if (!this.isThisVar(var)) {
-						 comment("setting up call to LOADVAR " + var);
+					 if (!this.isThisVar(var) && !this.host.skipRedundantLoad()) {
+						 this.host.comment("setting up call to LOADVAR " + var);
+						 final int site = this.host.newSite(EventKind.LOAD_VAR, null, null, null, var);
+						 final Label skip = this.host.beginHook(EventKind.LOAD_VAR, site);
 						 // System.out.println("uninitTy "+
-						 // this.analyzer.uninitializedTypes);
+						 // this.host.analyzer.uninitializedTypes);
 						 // valkind + val,
-						 this.pushKindAndObjectInVar(var);
-						 // int var,
-						 super.visitLdcInsn(var);
-						 // String callerclass,
-						 pushCallerClassStr();
-						 // String callermethod,
-						 super.visitLdcInsn(getMethodName());
+						 this.host.pushKindAndObjectInVar(var);
 						 // Object callerValKind+caller,
-						 pushThisKindAndObj();
-						 super.visitMethodInsn(INVOKESTATIC, "NativeInterface",
-								 "loadVar", "(" + "I" // valkind
+						 this.host.pushThisKindAndObj();
+						 // int site (knows the var index)
+						 this.host.pushInt(site);
+						 this.host.emitEventHook("loadVar", "(" + "I" // valkind
 										 + "Ljava/lang/Object;" // Val
-										 + "I" // var
-										 + "Ljava/lang/String;" // callerclass
-										 + "Ljava/lang/String;" // callermethod
 										 + "I" // callerValKind
 										 + "Ljava/lang/Object;" // caller
-										 +")V",// thread
-										 false);
-						 comment("done with call to LOADVAR");
+										 + "I" // site
+										 +")V");
+						 this.host.endHook(skip);
+						 this.host.comment("done with call to LOADVAR");
 						 // */
 					 }
 					 break;
@@ -1140,38 +1775,35 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 				 case DSTORE:
 					 break;
 				 case ASTORE:
-					 comment("setting up call to STOREVAR " + var);
+				 {
+					 this.host.comment("setting up call to STOREVAR " + var);
+					 final int site = this.host.newSite(EventKind.STORE_VAR, null, null, null, var);
+					 final Label skip = this.host.beginHook(EventKind.STORE_VAR, site);
 					 // Object newVal
-					 this.pushKindAndObjectAtDepth(0);
+					 this.host.pushKindAndObjectAtDepth(0);
 					 //arst pushFakeKindAndVal();
 					 // Object oldvalkind, oldval
 					 {
 						 //FIXME when pushing the old val, we sometimes get "Accessing value from uninitialized register 2"
-						 //this.pushKindAndObjectInVar(var);
-						 super.visitLdcInsn(Instrument.SPECIAL_VAL_NOT_IMPLEMENTED);
-						 super.visitInsn(ACONST_NULL);
+						 //this.host.pushKindAndObjectInVar(var);
+						 this.host.visitLdcInsn(Instrument.SPECIAL_VAL_NOT_IMPLEMENTED);
+						 this.host.visitInsn(ACONST_NULL);
 					 }
-					 // int var,
-					 super.visitLdcInsn(var);
-					 // String callerclass,
-					 pushCallerClassStr();
-					 // String callermethod,
-					 super.visitLdcInsn(getMethodName());
 					 // Object callerValKind+caller,
-					 pushThisKindAndObj();
-					 super.visitMethodInsn(INVOKESTATIC, "NativeInterface",
-							 "storeVar", "(" + "I" + "Ljava/lang/Object;" // newVal
+					 this.host.pushThisKindAndObj();
+					 // int site (knows the var index)
+					 this.host.pushInt(site);
+					 this.host.emitEventHook("storeVar", "(" + "I" + "Ljava/lang/Object;" // newVal
 									 + "I" + "Ljava/lang/Object;" // oldVal
-									 + "I" // var
-									 + "Ljava/lang/String;" // callerclass
-									 + "Ljava/lang/String;" // callermethod
 									 + "I" // callerValKind
 									 + "Ljava/lang/Object;" // caller
-									 + ")V", // thread
-									 false);
-					 comment("done with call to STOREVAR");
+									 + "I" // site
+									 + ")V");
+					 this.host.endHook(skip);
+					 this.host.comment("done with call to STOREVAR");
 					 // */
 					 break;
+				 }
 				 case RET:
 					 break;
 				 default:
@@ -1179,7 +1811,6 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 					 // RuntimeException("opcode "+opcode+" is illegal for visitVarInsn");
 				 }
 			 }
-			 super.visitVarInsn(opcode, var);
 		}
 
 		/**
@@ -1190,7 +1821,7 @@ public class InstrumentationVisitor extends ClassVisitor implements Opcodes {
 		 * @return true if the variable is `this`, false otherwise
 		 */
 		private boolean isThisVar(int var) {
-			return (!this.isStatic()) && var == 0;
+			return (!this.host.isStatic()) && var == 0;
 		}
 	}	
 }
\ No newline at end of file
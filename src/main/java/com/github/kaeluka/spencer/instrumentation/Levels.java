@@ -0,0 +1,53 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+/**
+ * Which kinds of events are instrumented. Every transform works with one
+ * snapshot of the levels, even if they change while it runs.
+ *
+ * @author Stephan Brandauer
+ */
+public final class Levels {
+	public final boolean fields;
+	public final boolean variables;
+	public final boolean methods;
+
+	public Levels(boolean fields, boolean variables, boolean methods) {
+		this.fields = fields;
+		this.variables = variables;
+		this.methods = methods;
+	}
+
+	/**
+	 * The levels set by {@code org.spencer.instrumentation.fields.enable},
+	 * {@code variables.enable} and {@code methods.enable} (all on by default).
+	 */
+	public static Levels fromProperties() {
+		return new Levels(
+				System.getProperty("org.spencer.instrumentation.fields.enable",    "true").equals("true"),
+				System.getProperty("org.spencer.instrumentation.variables.enable", "true").equals("true"),
+				System.getProperty("org.spencer.instrumentation.methods.enable",   "true").equals("true"));
+	}
+
+	public boolean any() {
+		return this.fields || this.variables || this.methods;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Levels)) {
+			return false;
+		}
+		final Levels other = (Levels) o;
+		return this.fields == other.fields && this.variables == other.variables && this.methods == other.methods;
+	}
+
+	@Override
+	public int hashCode() {
+		return (this.fields ? 1 : 0) | (this.variables ? 2 : 0) | (this.methods ? 4 : 0);
+	}
+
+	@Override
+	public String toString() {
+		return "fields="+this.fields+",variables="+this.variables+",methods="+this.methods;
+	}
+}
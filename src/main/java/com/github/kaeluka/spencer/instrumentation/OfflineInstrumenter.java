@@ -0,0 +1,330 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import com.github.kaeluka.spencer.instrumentation.runtime.SiteTable;
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.Opcodes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * Instruments jars, class directories and the JDK's own classes ahead of
+ * time, in parallel. The result is either a jar that can replace the inputs
+ * on the class path, or a directory of class files that can be put in front
+ * of the boot class path. The sites that the instrumented code refers to are
+ * written next to it and must be passed to the traced JVM with
+ * {@code -Dorg.spencer.instrumentation.sites=<file>}.
+ *
+ * @author Stephan Brandauer
+ */
+public class OfflineInstrumenter {
+	private static final String USAGE = String.join("\n",
+			"usage: OfflineInstrumenter (-o <out.jar> | -d <outdir>) [options] <input>...",
+			"",
+			"  <input>          a jar, a directory of classes, or 'jdk' for the JDK's runtime classes",
+			"  -o <out.jar>     write all inputs into one jar (resources are copied, signatures dropped)",
+			"  -d <outdir>      write the class files into a directory, for -Xbootclasspath/p:",
+			"  -s <file>        where to write the sites (default: <out>.sites)",
+			"  -j <threads>     number of worker threads (default: all processors)",
+			"",
+			"Instrumentation settings are read from the usual org.spencer.instrumentation.*",
+			"properties; tracing to log/output is off unless enabled explicitly. When",
+			"org.spencer.instrumentation.sites is set, those sites are loaded first and new",
+			"ids are assigned after them; the written sites file contains both.");
+
+	private static final class Entry {
+		final String name;
+		final byte[] bytes;
+		byte[] output;
+
+		Entry(String name, byte[] bytes) {
+			this.name = name;
+			this.bytes = bytes;
+		}
+
+		boolean isClass() {
+			return this.name.endsWith(".class") && !this.name.endsWith("module-info.class");
+		}
+	}
+
+	private final List<Entry> entries = new ArrayList<>();
+	private final Set<String> names = new HashSet<>();
+	private final AtomicInteger transformed = new AtomicInteger();
+	private final List<String> failures = Collections.synchronizedList(new ArrayList<>());
+
+	public static void main(String[] args) throws IOException {
+		if (System.getProperty("org.spencer.instrumentation.tracing.enable") == null) {
+			// listing every class of whole jars takes long
+			System.setProperty("org.spencer.instrumentation.tracing.enable", "false");
+		}
+		File outJar = null;
+		File outDir = null;
+		File sitesFile = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		final List<String> inputs = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				switch (args[i]) {
+				case "-o": outJar    = new File(args[++i]); break;
+				case "-d": outDir    = new File(args[++i]); break;
+				case "-s": sitesFile = new File(args[++i]); break;
+				case "-j": threads   = Integer.parseInt(args[++i]); break;
+				case "-h":
+				case "--help":
+					System.out.println(USAGE);
+					return;
+				default:
+					inputs.add(args[i]);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			usageError("bad arguments: "+e.getMessage());
+		}
+		if ((outJar == null) == (outDir == null)) {
+			usageError("exactly one of -o and -d is required");
+		}
+		if (inputs.isEmpty()) {
+			usageError("no inputs");
+		}
+		final File out = (outJar != null) ? outJar : outDir;
+		if (sitesFile == null) {
+			sitesFile = new File(out.getPath()+".sites");
+		}
+
+		final long start = System.nanoTime();
+		final OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+		for (String input : inputs) {
+			instrumenter.add(input);
+		}
+		instrumenter.instrument(threads);
+		if (outJar != null) {
+			instrumenter.writeJar(outJar);
+		} else {
+			instrumenter.writeDir(outDir);
+		}
+		writeSites(sitesFile);
+		instrumenter.report(out, sitesFile, System.nanoTime() - start);
+	}
+
+	private static void usageError(String msg) {
+		System.err.println(msg);
+		System.err.println(USAGE);
+		System.exit(1);
+	}
+
+	/**
+	 * Reads all entries of a jar, a directory or the JDK ('jdk'). Entries with
+	 * a name that was seen before are ignored, like on a class path.
+	 */
+	public void add(String input) throws IOException {
+		if ("jdk".equals(input)) {
+			this.addJdk();
+			return;
+		}
+		final File file = new File(input);
+		if (file.isDirectory()) {
+			this.addDir(file.toPath());
+		} else if (file.isFile()) {
+			this.addJar(file);
+		} else {
+			throw new IOException("no such jar or directory: "+input);
+		}
+	}
+
+	private void addEntry(String name, byte[] bytes) {
+		if (this.names.add(name)) {
+			this.entries.add(new Entry(name, bytes));
+		}
+	}
+
+	private void addJar(File file) throws IOException {
+		try (JarFile jar = new JarFile(file)) {
+			for (JarEntry e : Collections.list(jar.entries())) {
+				if (!e.isDirectory()) {
+					try (InputStream in = jar.getInputStream(e)) {
+						this.addEntry(e.getName(), IOUtils.toByteArray(in));
+					}
+				}
+			}
+		}
+	}
+
+	private void addDir(Path root) throws IOException {
+		try (Stream<Path> files = Files.walk(root)) {
+			for (Path path : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+				this.addEntry(root.relativize(path).toString().replace(File.separatorChar, '/'),
+						Files.readAllBytes(path));
+			}
+		}
+	}
+
+	private void addJdk() throws IOException {
+		final String bootClassPath = System.getProperty("sun.boot.class.path");
+		if (bootClassPath != null) {
+			// up to Java 8
+			for (String path : bootClassPath.split(File.pathSeparator)) {
+				final File file = new File(path);
+				if (file.isFile()) {
+					this.addJar(file);
+				}
+			}
+		} else {
+			// the classes of every module in the runtime image
+			final FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+			try (Stream<Path> modules = Files.list(jrt.getPath("/modules"))) {
+				for (Path module : (Iterable<Path>) modules::iterator) {
+					this.addDir(module);
+				}
+			}
+		}
+	}
+
+	private class Transform extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int CHUNK = 16;
+		private final int from;
+		private final int to;
+
+		Transform(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from <= CHUNK) {
+				for (int i = this.from; i < this.to; ++i) {
+					OfflineInstrumenter.this.transform(OfflineInstrumenter.this.entries.get(i));
+				}
+			} else {
+				final int mid = (this.from + this.to) >>> 1;
+				invokeAll(new Transform(this.from, mid), new Transform(mid, this.to));
+			}
+		}
+	}
+
+	private void transform(Entry entry) {
+		entry.output = entry.bytes;
+		if (!entry.isClass()) {
+			return;
+		}
+		try {
+			entry.output = Instrument.transform(entry.bytes);
+			if (entry.output != entry.bytes) {
+				this.transformed.incrementAndGet();
+			}
+		} catch (RuntimeException e) {
+			final int version = (entry.bytes.length > 8) ? ((entry.bytes[6] & 0xFF) << 8 | (entry.bytes[7] & 0xFF)) : -1;
+			if (version > Opcodes.V1_8) {
+				this.failures.add(entry.name+": class file version "+version+" is not supported");
+			} else {
+				this.failures.add(entry.name+": "+e);
+			}
+		}
+	}
+
+	public void instrument(int threads) {
+		// the inputs need not be on our class path, so tell the frame
+		// computation about all of them up front
+		for (Entry entry : this.entries) {
+			if (entry.isClass()) {
+				HierarchyIndex.shared().add(entry.bytes);
+			}
+		}
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new Transform(0, this.entries.size()));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static boolean isSignature(String name) {
+		final String upper = name.toUpperCase();
+		return upper.startsWith("META-INF/")
+				&& (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC"));
+	}
+
+	public void writeJar(File file) throws IOException {
+		if (file.getAbsoluteFile().getParentFile() != null) {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		try (JarOutputStream jar = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			for (Entry entry : this.entries) {
+				if (isSignature(entry.name)) {
+					// the instrumented classes would not match them anymore
+					continue;
+				}
+				jar.putNextEntry(new JarEntry(entry.name));
+				jar.write(entry.output);
+				jar.closeEntry();
+			}
+		}
+	}
+
+	public void writeDir(File dir) throws IOException {
+		for (Entry entry : this.entries) {
+			if (entry.isClass()) {
+				final File file = new File(dir, entry.name);
+				file.getParentFile().mkdirs();
+				try (OutputStream out = new FileOutputStream(file)) {
+					out.write(entry.output);
+				}
+			}
+		}
+	}
+
+	private static void writeSites(File file) throws IOException {
+		if (file.getAbsoluteFile().getParentFile() != null) {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			SiteTable.write(out);
+		}
+	}
+
+	private void report(File out, File sitesFile, long nanos) {
+		int classes = 0;
+		for (Entry entry : this.entries) {
+			if (entry.isClass()) {
+				classes++;
+			}
+		}
+		System.out.printf("instrumented %d of %d classes in %.1fs -> %s (sites: %s)%n",
+				this.transformed.get(), classes, nanos / 1e9, out, sitesFile);
+		System.out.println(Instrument.statistics());
+		final List<String> errors = new ArrayList<>(this.failures);
+		errors.addAll(Instrument.getErrors());
+		if (!errors.isEmpty()) {
+			System.out.println(errors.size()+" classes were left as they are:");
+			for (String error : errors.subList(0, Math.min(errors.size(), 20))) {
+				System.out.println("  "+error);
+			}
+			if (errors.size() > 20) {
+				System.out.println("  ...");
+			}
+		}
+	}
+}
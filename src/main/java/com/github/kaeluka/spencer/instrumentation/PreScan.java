@@ -0,0 +1,95 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Decides cheaply whether a class has any instruction that the emitters
+ * hook: with method instrumentation, any method with code; with field
+ * instrumentation, field accesses (except of synthetic fields, named with a
+ * {@code $}) and array element accesses; with variable instrumentation,
+ * {@code ASTORE} and {@code ALOAD} of anything but {@code this}. Classes
+ * without such instructions, such as interfaces, constant holders and
+ * trivial classes, are passed through untouched, without running the class
+ * writer and the frame computation on them. Method bodies are never looked
+ * at after the first instruction that is hooked.
+ *
+ * @author Stephan Brandauer
+ */
+final class PreScan extends ClassVisitor {
+	private final Levels levels;
+	private boolean found = false;
+
+	private PreScan(Levels levels) {
+		super(Opcodes.ASM5);
+		this.levels = levels;
+	}
+
+	/**
+	 * @return true if the instrumentation adds hooks to the class
+	 */
+	static boolean hasWork(ClassReader reader, Levels levels) {
+		if (!levels.any()) {
+			return false;
+		}
+		final PreScan scan = new PreScan(levels);
+		reader.accept(scan, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return scan.found;
+	}
+
+	@Override
+	public MethodVisitor visitMethod(int access, String name, String desc,
+			String signature, String[] exceptions) {
+		if (this.found
+				|| (access & Opcodes.ACC_SYNTHETIC) != 0
+				|| (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+			return null;
+		}
+		if (this.levels.methods) {
+			// every method with code gets methodEnter and methodExit
+			this.found = true;
+			return null;
+		}
+		final boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+		return new MethodVisitor(Opcodes.ASM5) {
+			@Override
+			public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+				PreScan.this.found |= PreScan.this.levels.fields && !name.contains("$");
+			}
+
+			@Override
+			public void visitInsn(int opcode) {
+				switch (opcode) {
+				case Opcodes.IALOAD:
+				case Opcodes.LALOAD:
+				case Opcodes.FALOAD:
+				case Opcodes.DALOAD:
+				case Opcodes.AALOAD:
+				case Opcodes.BALOAD:
+				case Opcodes.CALOAD:
+				case Opcodes.SALOAD:
+				case Opcodes.IASTORE:
+				case Opcodes.LASTORE:
+				case Opcodes.FASTORE:
+				case Opcodes.DASTORE:
+				case Opcodes.AASTORE:
+				case Opcodes.BASTORE:
+				case Opcodes.CASTORE:
+				case Opcodes.SASTORE:
+					PreScan.this.found |= PreScan.this.levels.fields;
+					break;
+				}
+			}
+
+			@Override
+			public void visitVarInsn(int opcode, int var) {
+				// loads of this are not hooked, nor are primitive variables
+				if (opcode == Opcodes.ASTORE || (opcode == Opcodes.ALOAD && (isStatic || var != 0))) {
+					PreScan.this.found |= PreScan.this.levels.variables;
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,332 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds load events that repeat one that was reported before, for
+ * {@code org.spencer.instrumentation.redundancy.enable=true}. The loads
+ * looked at are those of a local variable ({@code ALOAD v}), of a field
+ * through a receiver in a local variable ({@code ALOAD v; GETFIELD}), and of
+ * a static field. Such a load is redundant
+ *
+ * <ul>
+ * <li>if the same load was reported before in the same basic block, and
+ * nothing in between (a store to the variable, a write to a field of that
+ * name, a call, a monitor) can have changed its value. Its hook is left
+ * out.</li>
+ * <li>if nothing in the whole method can change its value: the variable is
+ * never stored to, or the field is declared (not volatile) in the class
+ * itself, is not written by the method, and the method has no calls and no
+ * monitors. Its hooks then report only the first of these loads per call,
+ * which catches loops such as {@code for (...) this.buf[i]++}. A flag in a
+ * new local variable remembers whether it was reported.</li>
+ * </ul>
+ *
+ * Only the current thread is taken into account: a field that another thread
+ * writes in between is not reported again.
+ *
+ * @author Stephan Brandauer
+ */
+final class RedundantLoads extends ClassVisitor {
+	// more than that many loads per method are only removed within blocks
+	static final int MAX_FLAGS = 32;
+
+	private String className;
+	private final Set<String> plainFields = new HashSet<>();
+	private final Set<String> volatileFields = new HashSet<>();
+	// by method name + descriptor
+	private final Map<String, Set<String>> invariant = new HashMap<>();
+
+	private RedundantLoads() {
+		super(Opcodes.ASM5);
+	}
+
+	static RedundantLoads scan(ClassReader reader) {
+		final RedundantLoads ret = new RedundantLoads();
+		reader.accept(ret, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return ret;
+	}
+
+	@Override
+	public void visit(int version, int access, String name, String signature,
+			String superName, String[] interfaces) {
+		this.className = name;
+	}
+
+	@Override
+	public FieldVisitor visitField(int access, String name, String desc,
+			String signature, Object value) {
+		if ((access & Opcodes.ACC_VOLATILE) != 0) {
+			this.volatileFields.add(this.className+"."+name);
+		} else {
+			this.plainFields.add(this.className+"."+name);
+		}
+		return null;
+	}
+
+	@Override
+	public MethodVisitor visitMethod(int access, String name, String desc,
+			String signature, String[] exceptions) {
+		return new Tracker(false) {
+			@Override
+			public void visitEnd() {
+				RedundantLoads.this.invariant.put(name+desc, this.invariantLoads());
+			}
+		};
+	}
+
+	/**
+	 * @return the keys ({@link Tracker#current()}) of the loads whose value
+	 *         can not change during a call of the method, in the order they
+	 *         first appear
+	 */
+	Set<String> invariantLoads(String name, String desc) {
+		final Set<String> ret = this.invariant.get(name+desc);
+		return (ret == null) ? Collections.emptySet() : ret;
+	}
+
+	/**
+	 * @param everyLabel
+	 *            whether every label can start a basic block, as in classes
+	 *            without stack map frames (version 50 and older)
+	 */
+	Tracker tracker(boolean everyLabel) {
+		return new Tracker(everyLabel);
+	}
+
+	/**
+	 * Follows the original instructions of one method, and knows the key of
+	 * the load at the current one, and which loads were reported in the
+	 * current basic block.
+	 */
+	class Tracker extends MethodVisitor {
+		private final boolean everyLabel;
+		private final Set<String> reported = new HashSet<>();
+		// the var of the directly preceding ALOAD, or -1
+		private int lastLoad = -1;
+		private String current = null;
+
+		// over the whole method
+		private final Set<String> loads = new LinkedHashSet<>();
+		private final Set<Integer> storedVars = new HashSet<>();
+		private final Set<String> writtenFields = new HashSet<>();
+		private boolean opaque = false;
+
+		private Tracker(boolean everyLabel) {
+			super(Opcodes.ASM5);
+			this.everyLabel = everyLabel;
+		}
+
+		/**
+		 * @return the key of the load at the current instruction, or null if
+		 *         it is not one that is tracked
+		 */
+		String current() {
+			return this.current;
+		}
+
+		/**
+		 * @return true if the load at the current instruction was reported
+		 *         before in this block
+		 */
+		boolean isReported() {
+			return this.current != null && this.reported.contains(this.current);
+		}
+
+		void setReported() {
+			if (this.current != null) {
+				this.reported.add(this.current);
+			}
+		}
+
+		Set<String> invariantLoads() {
+			final Set<String> ret = new LinkedHashSet<>();
+			for (String key : this.loads) {
+				switch (key.charAt(0)) {
+				case 'v':
+					if (!this.storedVars.contains(Integer.parseInt(key.substring(1)))) {
+						ret.add(key);
+					}
+					break;
+				case 'f':
+					if (!this.storedVars.contains(Integer.parseInt(key.substring(1, key.indexOf('.'))))
+							&& this.isInvariantField(key.substring(key.indexOf('.') + 1))) {
+						ret.add(key);
+					}
+					break;
+				case 's':
+					if (this.isInvariantField(key.substring(2))) {
+						ret.add(key);
+					}
+					break;
+				}
+			}
+			return ret;
+		}
+
+		private boolean isInvariantField(String ownerAndName) {
+			return !this.opaque
+					&& RedundantLoads.this.plainFields.contains(ownerAndName)
+					&& !this.writtenFields.contains(ownerAndName.substring(ownerAndName.lastIndexOf('.') + 1));
+		}
+
+		private void reset() {
+			this.reported.clear();
+			this.lastLoad = -1;
+		}
+
+		private void killVar(int var) {
+			this.storedVars.add(var);
+			final String prefix = "f"+var+".";
+			this.reported.removeIf(key -> key.equals("v"+var) || key.startsWith(prefix));
+		}
+
+		private void killFields(String name) {
+			if (name != null) {
+				this.writtenFields.add(name);
+			}
+			this.reported.removeIf(key -> key.charAt(0) != 'v' && (name == null || key.endsWith("."+name)));
+		}
+
+		private void other() {
+			this.lastLoad = -1;
+			this.current = null;
+		}
+
+		@Override
+		public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+			this.reset();
+		}
+
+		@Override
+		public void visitLabel(Label label) {
+			if (this.everyLabel) {
+				this.reset();
+			}
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			this.other();
+			switch (opcode) {
+			case Opcodes.ALOAD:
+				this.current = "v"+var;
+				this.loads.add(this.current);
+				this.lastLoad = var;
+				break;
+			case Opcodes.LSTORE:
+			case Opcodes.DSTORE:
+				this.killVar(var);
+				this.killVar(var + 1);
+				break;
+			case Opcodes.ISTORE:
+			case Opcodes.FSTORE:
+			case Opcodes.ASTORE:
+				this.killVar(var);
+				break;
+			}
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			this.other();
+			this.killVar(var);
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+			final int receiver = this.lastLoad;
+			this.other();
+			switch (opcode) {
+			case Opcodes.GETFIELD:
+				if (receiver >= 0) {
+					this.current = "f"+receiver+"."+owner+"."+name;
+				}
+				break;
+			case Opcodes.GETSTATIC:
+				this.current = "s."+owner+"."+name;
+				break;
+			default:
+				this.killFields(name);
+			}
+			if (this.current != null) {
+				if (RedundantLoads.this.volatileFields.contains(owner+"."+name)) {
+					this.current = null;
+				} else {
+					this.loads.add(this.current);
+				}
+			}
+		}
+
+		@Override
+		public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+			this.other();
+			this.opaque = true;
+			this.killFields(null);
+		}
+
+		@Override
+		public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+			this.other();
+			this.opaque = true;
+			this.killFields(null);
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			this.other();
+			if (opcode == Opcodes.MONITORENTER || opcode == Opcodes.MONITOREXIT) {
+				this.opaque = true;
+				this.killFields(null);
+			}
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			this.other();
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			this.other();
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			this.other();
+		}
+
+		@Override
+		public void visitLdcInsn(Object cst) {
+			this.other();
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			this.other();
+		}
+
+		@Override
+		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+			this.other();
+		}
+
+		@Override
+		public void visitMultiANewArrayInsn(String desc, int dims) {
+			this.other();
+		}
+	}
+}
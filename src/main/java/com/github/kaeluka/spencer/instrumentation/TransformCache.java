@@ -0,0 +1,360 @@
+package com.github.kaeluka.spencer.instrumentation;
+
+import com.github.kaeluka.spencer.instrumentation.runtime.Site;
+import com.github.kaeluka.spencer.instrumentation.runtime.SiteTable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps instrumented class files on disk, keyed by the SHA-256 of the
+ * original class file, the instrumentation settings, and the instrumenter's
+ * own code, so that a warm start does not need to instrument (or even parse)
+ * anything.
+ *
+ * The frames of an instrumented class also depend on the superclasses and
+ * interfaces of the classes it uses, so every entry records those that were
+ * looked up while instrumenting, and is only used while they are unchanged.
+ *
+ * Every entry also holds the sites the instrumented code refers to. To keep
+ * site ids of different runs apart, all JVMs that share a cache take their
+ * ids from blocks that are reserved in the cache directory. Several JVMs can
+ * use the same cache at once: entries are written to a temporary file and
+ * then atomically moved into place. When the cache grows beyond its size
+ * bound, the least recently used entries are evicted.
+ *
+ * @author Stephan Brandauer
+ */
+public final class TransformCache {
+	private static final int MAGIC   = 0x53504343; // "SPCC"
+	private static final int VERSION = 2;
+	private static final String SUFFIX = ".cls";
+
+	private final File dir;
+	private final long maxBytes;
+	private final byte[] fingerprint;
+	private final AtomicLong bytes;
+	// keys are computed on all class loading threads at once
+	private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(TransformCache::newDigest);
+
+	public TransformCache(File dir, long maxBytes, String configuration) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new UncheckedIOException(new IOException("can not create cache directory "+dir));
+		}
+		final MessageDigest digest = newDigest();
+		digest.update(configuration.getBytes(StandardCharsets.UTF_8));
+		updateWithInstrumenterCode(digest);
+		this.fingerprint = digest.digest();
+		this.bytes = new AtomicLong(this.usedBytes());
+		SiteTable.useBlocks(this::reserveIds);
+	}
+
+	/**
+	 * @return the cache configured by {@code org.spencer.instrumentation.cache.dir}
+	 *         and {@code org.spencer.instrumentation.cache.size} (in MB), or
+	 *         null if caching is off
+	 */
+	public static TransformCache fromProperties(String configuration) {
+		final String dir = System.getProperty("org.spencer.instrumentation.cache.dir", "");
+		if (dir.isEmpty()) {
+			return null;
+		}
+		final long maxBytes = Long.getLong("org.spencer.instrumentation.cache.size", 512) << 20;
+		return new TransformCache(new File(dir), maxBytes, configuration);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Cached classes become stale when the instrumenter changes.
+	 */
+	private static void updateWithInstrumenterCode(MessageDigest digest) {
+		final List<Class<?>> classes = new ArrayList<>();
+		classes.add(Instrument.class);
+		classes.add(ExitHandler.class);
+		classes.add(InstrumentationVisitor.class);
+		classes.add(HierarchyClassWriter.class);
+		classes.add(HierarchyIndex.class);
+		classes.add(PreScan.class);
+		classes.add(RedundantLoads.class);
+		classes.add(ArrayScans.class);
+		classes.add(Levels.class);
+		for (Class<?> inner : InstrumentationVisitor.class.getDeclaredClasses()) {
+			classes.add(inner);
+		}
+		for (Class<?> inner : RedundantLoads.class.getDeclaredClasses()) {
+			classes.add(inner);
+		}
+		for (Class<?> inner : ArrayScans.class.getDeclaredClasses()) {
+			classes.add(inner);
+		}
+		classes.sort(Comparator.comparing(Class::getName));
+		final byte[] buf = new byte[1 << 13];
+		for (Class<?> c : classes) {
+			final String resource = "/"+c.getName().replace('.', '/')+".class";
+			try (InputStream in = TransformCache.class.getResourceAsStream(resource)) {
+				int n;
+				while (in != null && (n = in.read(buf)) > 0) {
+					digest.update(buf, 0, n);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	public String key(byte[] original, Levels levels) {
+		final MessageDigest digest = digests.get();
+		digest.update(this.fingerprint);
+		digest.update((byte) levels.hashCode());
+		final byte[] hash = digest.digest(original);
+		final StringBuilder ret = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			ret.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return ret.toString();
+	}
+
+	private File entry(String key) {
+		return new File(new File(this.dir, key.substring(0, 2)), key.substring(2)+SUFFIX);
+	}
+
+	/**
+	 * Looks up the instrumented version of a class, and restores the sites
+	 * that it refers to. An entry whose recorded hierarchy differs from what
+	 * {@link HierarchyIndex} sees now counts as not cached.
+	 *
+	 * @return the instrumented class file, {@code original} if the class is
+	 *         not instrumented, or null if the class is not in the cache
+	 */
+	public byte[] get(String key, byte[] original) {
+		final File file = this.entry(key);
+		final byte[] data;
+		try {
+			data = Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			// not cached (or evicted right now)
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				file.delete();
+				return null;
+			}
+			final boolean transformed = in.readBoolean();
+			final int hierarchySize = in.readInt();
+			for (int i = 0; i < hierarchySize; ++i) {
+				final String name = in.readUTF();
+				final String recorded = in.readUTF();
+				if (!isCurrent(name, recorded)) {
+					// overwritten by the put that follows the transformation
+					return null;
+				}
+			}
+			final int siteCount = in.readInt();
+			for (int i = 0; i < siteCount; ++i) {
+				final int id = in.readInt();
+				SiteTable.restore(id, Site.read(in));
+			}
+			file.setLastModified(System.currentTimeMillis());
+			if (!transformed) {
+				return original;
+			}
+			final byte[] ret = new byte[in.readInt()];
+			in.readFully(ret);
+			return ret;
+		} catch (IOException e) {
+			// truncated or garbled
+			file.delete();
+			return null;
+		}
+	}
+
+	private static boolean isCurrent(String name, String recorded) {
+		try {
+			return HierarchyIndex.shared().describe(name).equals(recorded);
+		} catch (TypeNotPresentException e) {
+			return false;
+		}
+	}
+
+	public void put(String key, byte[] transformed, List<Integer> sites) {
+		this.put(key, transformed, sites, Collections.emptyMap());
+	}
+
+	/**
+	 * @param transformed
+	 *            the instrumented class file, or null if the class is not
+	 *            instrumented
+	 * @param sites
+	 *            the ids of the sites that the instrumented code refers to
+	 * @param hierarchy
+	 *            the classes looked up while instrumenting, see
+	 *            {@link HierarchyIndex#stopRecording()}
+	 */
+	public void put(String key, byte[] transformed, List<Integer> sites, Map<String, String> hierarchy) {
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream(
+				(transformed == null) ? 64 : transformed.length + 64 * sites.size() + 64);
+		try (DataOutputStream out = new DataOutputStream(buf)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(transformed != null);
+			out.writeInt(hierarchy.size());
+			for (Map.Entry<String, String> e : hierarchy.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeUTF(e.getValue());
+			}
+			out.writeInt(sites.size());
+			for (int id : sites) {
+				out.writeInt(id);
+				SiteTable.get(id).write(out);
+			}
+			if (transformed != null) {
+				out.writeInt(transformed.length);
+				out.write(transformed);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		final File file = this.entry(key);
+		try {
+			file.getParentFile().mkdirs();
+			final File tmp = File.createTempFile("entry", ".tmp", file.getParentFile());
+			try {
+				Files.write(tmp.toPath(), buf.toByteArray());
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				tmp.delete();
+			}
+		} catch (AtomicMoveNotSupportedException e) {
+			// can't publish the entry safely, the class simply stays uncached
+			return;
+		} catch (IOException e) {
+			// the cache is best effort
+			return;
+		}
+		if (this.bytes.addAndGet(buf.size()) > this.maxBytes) {
+			this.evict();
+		}
+	}
+
+	private List<File> entries() {
+		final List<File> ret = new ArrayList<>();
+		final File[] subdirs = this.dir.listFiles(File::isDirectory);
+		if (subdirs != null) {
+			for (File subdir : subdirs) {
+				final File[] files = subdir.listFiles((d, name) -> name.endsWith(SUFFIX));
+				if (files != null) {
+					for (File file : files) {
+						ret.add(file);
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	private long usedBytes() {
+		long ret = 0;
+		for (File file : this.entries()) {
+			ret += file.length();
+		}
+		return ret;
+	}
+
+	/**
+	 * Deletes the least recently used entries until the cache is down to
+	 * three quarters of its size bound.
+	 */
+	private synchronized void evict() {
+		if (this.bytes.get() <= this.maxBytes) {
+			// another thread was faster
+			return;
+		}
+		final List<File> entries = this.entries();
+		final long[] lastUsed = new long[entries.size()];
+		final Integer[] order = new Integer[entries.size()];
+		long used = 0;
+		for (int i = 0; i < order.length; ++i) {
+			order[i] = i;
+			lastUsed[i] = entries.get(i).lastModified();
+			used += entries.get(i).length();
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> lastUsed[i]));
+		final long target = this.maxBytes - this.maxBytes / 4;
+		for (int i = 0; i < order.length && used > target; ++i) {
+			final File file = entries.get(order[i]);
+			final long length = file.length();
+			if (file.delete()) {
+				used -= length;
+			}
+		}
+		this.bytes.set(used);
+	}
+
+	/**
+	 * Reserves a block of site ids through a counter file in the cache
+	 * directory, under a file lock so that concurrent JVMs get disjoint
+	 * blocks.
+	 */
+	private int reserveIds(int size, int min) {
+		try (RandomAccessFile file = new RandomAccessFile(new File(this.dir, "site-ids"), "rw");
+				FileChannel channel = file.getChannel()) {
+			final FileLock lock = channel.lock();
+			try {
+				final ByteBuffer buf = ByteBuffer.allocate(4);
+				int start = 1;
+				if (channel.size() >= 4) {
+					channel.read(buf, 0);
+					buf.flip();
+					start = buf.getInt();
+					buf.clear();
+				}
+				start = Math.max(start, min);
+				if (start > Integer.MAX_VALUE - size) {
+					throw new IllegalStateException("ran out of site ids, clear the cache in "+this.dir);
+				}
+				buf.putInt(start + size).flip();
+				channel.write(buf, 0);
+				channel.force(false);
+				return start;
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("can not reserve site ids in "+this.dir, e);
+		}
+	}
+}
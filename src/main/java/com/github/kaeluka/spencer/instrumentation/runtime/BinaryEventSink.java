@@ -0,0 +1,102 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the raw records to a file. The file starts with a header of
+ * {@link #HEADER_BYTES} bytes (magic, format version, record size in bytes,
+ * padding), followed by the records in big endian order. The {@link SiteTable} that the records refer to is
+ * written to a second file with the suffix {@code .sites} when the sink is
+ * closed.
+ *
+ * @author Stephan Brandauer
+ */
+public final class BinaryEventSink implements EventSink {
+	public static final int MAGIC   = 0x53504E43; // "SPNC"
+	public static final int VERSION = 4;
+	public static final int HEADER_BYTES = 16;
+
+	private final File file;
+	private final FileChannel channel;
+	private final ByteBuffer bytes;
+	private final LongBuffer longs;
+
+	public BinaryEventSink(File file, int bufferedRecords) {
+		this.file = file;
+		this.bytes = ByteBuffer.allocateDirect(bufferedRecords * EventKind.RECORD_BYTES);
+		this.longs = this.bytes.asLongBuffer();
+		try {
+			if (file.getParentFile() != null && !file.getParentFile().exists()) {
+				file.getParentFile().mkdirs();
+			}
+			this.channel = new FileOutputStream(file).getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			putHeader(header);
+			header.flip();
+			this.writeFully(header);
+		} catch (IOException e) {
+			throw new UncheckedIOException("can not open trace file "+file, e);
+		}
+	}
+
+	static void putHeader(ByteBuffer buf) {
+		buf.putInt(MAGIC).putInt(VERSION).putInt(EventKind.RECORD_BYTES).putInt(0);
+	}
+
+	static void writeSites(File traceFile) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(
+				new FileOutputStream(traceFile.getPath()+".sites"))) {
+			SiteTable.write(out);
+		}
+	}
+
+	@Override
+	public void write(long[] words, int offset, int length) {
+		while (length > 0) {
+			final int n = Math.min(length, this.longs.capacity());
+			this.longs.clear();
+			this.longs.put(words, offset, n);
+			this.bytes.clear();
+			this.bytes.limit(n * 8);
+			this.writeFully(this.bytes);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private void writeFully(ByteBuffer buf) {
+		try {
+			while (buf.hasRemaining()) {
+				this.channel.write(buf);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("can not write to trace file "+this.file, e);
+		}
+	}
+
+	@Override
+	public void flush() {
+		try {
+			this.channel.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			this.channel.close();
+			writeSites(this.file);
+		} catch (IOException e) {
+			throw new UncheckedIOException("can not close trace file "+this.file, e);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+/**
+ * A preallocated block of fixed-size records that belongs to exactly one
+ * thread. Hooks write their records into the next free slot without taking
+ * any locks; once the block is full, it is handed to the {@link EventFlusher}
+ * and writing continues in a fresh block. Recording an event does not
+ * allocate.
+ *
+ * @author Stephan Brandauer
+ */
+public final class EventBuffer {
+	private final EventFlusher flusher; // null if the records are dropped
+	private final Thread owner;
+	private long[] words;
+	private int head = 0;
+
+	EventBuffer(EventFlusher flusher, Thread owner, long[] words) {
+		this.flusher = flusher;
+		this.owner = owner;
+		this.words = words;
+	}
+
+	/**
+	 * Must only be called by the owning thread.
+	 */
+	public void record(long header,
+			long w1, long w2, long w3, long w4, long w5, long w6, long w7) {
+		final long[] words = this.words;
+		final int i = this.head;
+		words[i]   = header;
+		words[i+1] = w1;
+		words[i+2] = w2;
+		words[i+3] = w3;
+		words[i+4] = w4;
+		words[i+5] = w5;
+		words[i+6] = w6;
+		words[i+7] = w7;
+		this.head = i + EventKind.RECORD_WORDS;
+		if (this.head == words.length) {
+			this.handOff();
+		}
+	}
+
+	/**
+	 * Hands the records written so far to the flusher. Must only be called by
+	 * the owning thread.
+	 */
+	public void handOff() {
+		if (this.head > 0 && this.flusher != null) {
+			this.words = this.flusher.exchange(this.words, this.head);
+		}
+		this.head = 0;
+	}
+
+	Thread getOwner() {
+		return this.owner;
+	}
+
+	/**
+	 * Writes the records that were not handed off yet directly to the sink.
+	 * Only safe once the owner does not write to this buffer anymore.
+	 */
+	void drainTo(EventSink sink) {
+		if (this.head > 0) {
+			sink.write(this.words, 0, this.head);
+			this.head = 0;
+		}
+	}
+}
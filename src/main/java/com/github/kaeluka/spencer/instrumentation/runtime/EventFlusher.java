@@ -0,0 +1,180 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves full {@link EventBuffer} blocks to the {@link EventSink} on a
+ * background thread. Producers hand off their blocks through lock-free
+ * queues, so threads that record events never contend on a lock; the sink
+ * is only ever called by the flusher thread (or, after the flusher thread has
+ * stopped, by {@link #close()}).
+ *
+ * Records of one thread reach the sink in the order they were recorded.
+ * Records of different threads are interleaved in blocks; every record
+ * carries the id of its thread.
+ *
+ * @author Stephan Brandauer
+ */
+public final class EventFlusher implements Runnable {
+	// producers stall when this many full blocks are waiting for the sink
+	private static final int MAX_PENDING = 256;
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private static final class Block {
+		final long[] words;
+		final int length;
+
+		Block(long[] words, int length) {
+			this.words = words;
+			this.length = length;
+		}
+	}
+
+	private final EventSink sink;
+	private final int blockWords;
+	private final ConcurrentLinkedQueue<Block> full = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<long[]> free = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<EventBuffer> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong submitted = new AtomicLong();
+	private volatile long written = 0;
+	private volatile boolean flushRequested = false;
+	private volatile boolean closed = false;
+	private final Thread thread;
+
+	public EventFlusher(EventSink sink, int recordsPerBuffer) {
+		if (recordsPerBuffer <= 0) {
+			throw new IllegalArgumentException("buffer must hold at least one record, got "+recordsPerBuffer);
+		}
+		this.sink = sink;
+		this.blockWords = recordsPerBuffer * EventKind.RECORD_WORDS;
+		this.thread = new Thread(this, "spencer-event-flusher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Creates the buffer for the calling thread.
+	 */
+	public EventBuffer newBuffer() {
+		if (Thread.currentThread() == this.thread) {
+			// events caused by the sink (like decoding records) are dropped,
+			// otherwise they would feed back into the trace
+			return new EventBuffer(null, this.thread, new long[EventKind.RECORD_WORDS]);
+		}
+		final EventBuffer buffer = new EventBuffer(this, Thread.currentThread(), this.freeBlock());
+		this.buffers.add(buffer);
+		return buffer;
+	}
+
+	private long[] freeBlock() {
+		final long[] block = this.free.poll();
+		return (block != null) ? block : new long[this.blockWords];
+	}
+
+	/**
+	 * Queues a full block for the sink and returns an empty one.
+	 */
+	long[] exchange(long[] words, int length) {
+		if (this.closed) {
+			// too late, the sink is gone
+			return words;
+		}
+		while (this.pending.get() >= MAX_PENDING && !this.closed
+				&& Thread.currentThread() != this.thread) {
+			LockSupport.unpark(this.thread);
+			Thread.yield();
+		}
+		this.full.add(new Block(words, length));
+		this.pending.incrementAndGet();
+		this.submitted.incrementAndGet();
+		LockSupport.unpark(this.thread);
+		return this.freeBlock();
+	}
+
+	@Override
+	public void run() {
+		while (!this.closed) {
+			this.drainQueue();
+			this.drainDeadThreads();
+			if (this.flushRequested) {
+				this.flushRequested = false;
+				this.sink.flush();
+			}
+			if (this.full.isEmpty()) {
+				LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+		}
+	}
+
+	private void drainQueue() {
+		Block block;
+		while ((block = this.full.poll()) != null) {
+			this.sink.write(block.words, 0, block.length);
+			this.pending.decrementAndGet();
+			this.written++;
+			this.free.add(block.words);
+		}
+	}
+
+	private void drainDeadThreads() {
+		final Iterator<EventBuffer> it = this.buffers.iterator();
+		while (it.hasNext()) {
+			final EventBuffer buffer = it.next();
+			if (!buffer.getOwner().isAlive()) {
+				// the thread's earlier blocks were all queued before it died
+				this.drainQueue();
+				buffer.drainTo(this.sink);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Hands off the calling thread's buffer and waits until everything that
+	 * was queued so far has reached the sink.
+	 */
+	public void flush(EventBuffer callersBuffer) {
+		callersBuffer.handOff();
+		final long target = this.submitted.get();
+		this.flushRequested = true;
+		while (this.written < target && !this.closed) {
+			LockSupport.unpark(this.thread);
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+	}
+
+	/**
+	 * Stops the flusher thread and drains, in order, all queued blocks and
+	 * then the partially filled buffers of all threads (ordered by thread id).
+	 * Records that threads write while or after this runs may be lost.
+	 */
+	public synchronized void close() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		LockSupport.unpark(this.thread);
+		try {
+			this.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.drainQueue();
+		final List<EventBuffer> remaining = new ArrayList<>(this.buffers);
+		remaining.sort(Comparator.comparingLong(b -> b.getOwner().getId()));
+		for (EventBuffer buffer : remaining) {
+			buffer.drainTo(this.sink);
+		}
+		this.buffers.clear();
+		this.sink.close();
+	}
+}
@@ -0,0 +1,118 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+/**
+ * The kinds of records written by {@code NativeInterface}, and the layout of
+ * a record.
+ *
+ * Every record is {@link #RECORD_WORDS} longs wide. The first word is the
+ * header: the kind lives in the lowest byte, up to three value kinds
+ * (SPECIAL_VAL_XXX) in the next three bytes, and the id of the emitting thread
+ * in the upper 32 bits. The meaning of the remaining words depends on the
+ * kind, see {@link TextEventSink} for the decoding.
+ *
+ * @author Stephan Brandauer
+ */
+public final class EventKind {
+	public static final int RECORD_WORDS = 8;
+	public static final int RECORD_BYTES = RECORD_WORDS * 8;
+	// reference arguments that fit into the METHOD_ENTER record itself
+	public static final int ENTER_ARGS   = RECORD_WORDS - 3;
+
+	public static final int LOAD_FIELD_A  = 1;
+	public static final int STORE_FIELD_A = 2;
+	public static final int LOAD_VAR      = 3;
+	public static final int STORE_VAR     = 4;
+	public static final int READ          = 5;
+	public static final int MODIFY        = 6;
+	public static final int METHOD_ENTER  = 7;
+	public static final int METHOD_ARGS   = 8; // continuation of METHOD_ENTER
+	public static final int METHOD_EXIT   = 9;
+	public static final int AFTER_INIT    = 10;
+	public static final int NEW_OBJ       = 11;
+	public static final int LOAD_ARRAY_A  = 12;
+	public static final int STORE_ARRAY_A = 13;
+	public static final int READ_ARRAY    = 14;
+	public static final int MODIFY_ARRAY  = 15;
+	public static final int ACCESS_COUNT  = 16; // aggregated field accesses of one call
+	public static final int ARRAY_RANGE   = 17; // the elements a loop over an array accessed
+
+	private static final String[] names = {
+			"<none>",
+			"loadFieldA",
+			"storeFieldA",
+			"loadVar",
+			"storeVar",
+			"read",
+			"modify",
+			"methodEnter",
+			"methodArgs",
+			"methodExit",
+			"afterInitMethod",
+			"newObj",
+			"loadArrayA",
+			"storeArrayA",
+			"readArray",
+			"modifyArray",
+			"accessCount",
+			"arrayRange",
+	};
+
+	private EventKind() {
+	}
+
+	public static String name(int kind) {
+		return (kind > 0 && kind < names.length) ? names[kind] : "<unknown kind "+kind+">";
+	}
+
+	/**
+	 * @return the kind with the given name, or -1
+	 */
+	public static int byName(String name) {
+		for (int kind = 1; kind < names.length; ++kind) {
+			if (names[kind].equals(name)) {
+				return kind;
+			}
+		}
+		return -1;
+	}
+
+	public static long header(int kind, int k1, int k2, int k3) {
+		return (kind & 0xFF)
+				| ((k1 & 0xFF) << 8)
+				| ((k2 & 0xFF) << 16)
+				| ((long)(k3 & 0xFF) << 24)
+				| (Thread.currentThread().getId() << 32);
+	}
+
+	public static int kind(long header) {
+		return (int)(header & 0xFF);
+	}
+
+	public static int valKind1(long header) {
+		return (int)((header >>> 8) & 0xFF);
+	}
+
+	public static int valKind2(long header) {
+		return (int)((header >>> 16) & 0xFF);
+	}
+
+	public static int valKind3(long header) {
+		return (int)((header >>> 24) & 0xFF);
+	}
+
+	public static long thread(long header) {
+		return header >>> 32;
+	}
+
+	public static long pack(int lo, int hi) {
+		return (lo & 0xFFFFFFFFL) | ((long)hi << 32);
+	}
+
+	public static int lo(long word) {
+		return (int)word;
+	}
+
+	public static int hi(long word) {
+		return (int)(word >>> 32);
+	}
+}
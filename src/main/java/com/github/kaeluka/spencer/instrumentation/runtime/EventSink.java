@@ -0,0 +1,24 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+/**
+ * Consumes the binary records collected by an {@link EventBuffer}. A sink is
+ * only ever called by one thread at a time.
+ *
+ * @author Stephan Brandauer
+ */
+public interface EventSink {
+	/**
+	 * @param words
+	 *            the buffer holding the records
+	 * @param offset
+	 *            the index of the first word of the first record
+	 * @param length
+	 *            the number of words, always a multiple of
+	 *            {@link EventKind#RECORD_WORDS}
+	 */
+	void write(long[] words, int offset, int length);
+
+	void flush();
+
+	void close();
+}
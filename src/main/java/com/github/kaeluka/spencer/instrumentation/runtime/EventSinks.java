@@ -0,0 +1,36 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.io.File;
+
+/**
+ * Creates the {@link EventSink} that {@code NativeInterface} writes to, as
+ * configured by the {@code org.spencer.instrumentation.sink*} properties.
+ *
+ * @author Stephan Brandauer
+ */
+public final class EventSinks {
+	public static final String sink         = System.getProperty("org.spencer.instrumentation.sink",        "text");
+	public static final String sinkFile     = System.getProperty("org.spencer.instrumentation.sink.file",   "log/trace.bin");
+	// per thread
+	public static final int bufferedRecords = Integer.getInteger("org.spencer.instrumentation.sink.buffer", 1 << 12);
+	// only for the mapped sink
+	public static final long segmentBytes   = Long.getLong("org.spencer.instrumentation.sink.segment",      64L << 20);
+
+	private EventSinks() {
+	}
+
+	public static EventSink fromProperties() {
+		switch (sink) {
+		case "text":
+			return new TextEventSink(System.err);
+		case "binary":
+			return new BinaryEventSink(new File(sinkFile), bufferedRecords);
+		case "mapped":
+			return new MappedEventSink(new File(sinkFile), segmentBytes);
+		case "null":
+			return new NullEventSink();
+		default:
+			throw new IllegalArgumentException("unknown sink '"+sink+"', expected one of: text, binary, mapped, null");
+		}
+	}
+}
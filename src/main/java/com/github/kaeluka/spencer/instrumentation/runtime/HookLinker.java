@@ -0,0 +1,152 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Links the hooks of classes instrumented with
+ * {@code org.spencer.instrumentation.hooks.mode=invokedynamic}. All
+ * {@code invokedynamic} instructions of a hook share one
+ * {@link MutableCallSite}, whose target is the backend of the hook's event
+ * kind:
+ *
+ * <ul>
+ * <li>{@link Backend#RECORD}: the hook in {@code NativeInterface}, which
+ * writes to the sink (the default)</li>
+ * <li>{@link Backend#COUNT}: only counts the events</li>
+ * <li>{@link Backend#OFF}: does nothing, so that the JIT can drop the
+ * hook</li>
+ * </ul>
+ *
+ * The backend of a kind can be set at start up, as for instance
+ * {@code org.spencer.instrumentation.hooks.backend.loadVar=off}, and changed
+ * at any time with {@link #setBackend(int, Backend)}, without retransforming
+ * any class. Classes instrumented with {@code invokestatic} hooks always
+ * record.
+ *
+ * @author Stephan Brandauer
+ */
+public final class HookLinker {
+	public enum Backend {
+		RECORD, COUNT, OFF
+	}
+
+	private static final class Link {
+		final int kind;
+		final MethodHandle record;
+		final MutableCallSite site;
+
+		Link(int kind, MethodHandle record) {
+			this.kind = kind;
+			this.record = record;
+			this.site = new MutableCallSite(record.type());
+		}
+	}
+
+	private static final int KINDS = EventKind.ARRAY_RANGE + 1;
+	private static final Backend[] backends = new Backend[KINDS];
+	private static final LongAdder[] counts = new LongAdder[KINDS];
+	// by hook name and type
+	private static final Map<String, Link> links = new HashMap<>();
+
+	private static final MethodHandle INCREMENT;
+	private static final MethodHandle NOTHING;
+
+	static {
+		for (int kind = 0; kind < KINDS; ++kind) {
+			backends[kind] = Backend.valueOf(System.getProperty(
+					"org.spencer.instrumentation.hooks.backend."+EventKind.name(kind), "record").toUpperCase());
+			counts[kind] = new LongAdder();
+		}
+		try {
+			INCREMENT = MethodHandles.lookup().findVirtual(LongAdder.class, "increment",
+					MethodType.methodType(void.class));
+			NOTHING = MethodHandles.lookup().findStatic(HookLinker.class, "nothing",
+					MethodType.methodType(void.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private HookLinker() {
+	}
+
+	private static void nothing() {
+	}
+
+	/**
+	 * Links an {@code invokedynamic} hook, for the bootstrap method in
+	 * {@code NativeInterface}.
+	 *
+	 * @param hooks
+	 *            a lookup that can find the hook in {@code NativeInterface}
+	 */
+	public static synchronized CallSite link(MethodHandles.Lookup hooks, String name, MethodType type)
+			throws ReflectiveOperationException {
+		final String key = name+type;
+		Link link = links.get(key);
+		if (link == null) {
+			// methodEnter0 to methodEnter5 are all methodEnter
+			final int kind = EventKind.byName(name.replaceAll("[0-9]+$", ""));
+			if (kind <= 0) {
+				throw new IllegalArgumentException("not a hook: "+name);
+			}
+			link = new Link(kind, hooks.findStatic(hooks.lookupClass(), name, type));
+			link.site.setTarget(target(link, backends[kind]));
+			links.put(key, link);
+		}
+		return link.site;
+	}
+
+	private static MethodHandle target(Link link, Backend backend) {
+		switch (backend) {
+		case RECORD:
+			return link.record;
+		case COUNT:
+			return MethodHandles.dropArguments(INCREMENT.bindTo(counts[link.kind]), 0,
+					link.record.type().parameterList());
+		case OFF:
+			return MethodHandles.dropArguments(NOTHING, 0, link.record.type().parameterList());
+		default:
+			throw new AssertionError(backend);
+		}
+	}
+
+	/**
+	 * Changes the backend of all hooks of the given event kind.
+	 */
+	public static synchronized void setBackend(int kind, Backend backend) {
+		if (kind <= 0 || kind >= KINDS) {
+			throw new IllegalArgumentException("unknown event kind "+kind);
+		}
+		backends[kind] = backend;
+		final List<MutableCallSite> changed = new ArrayList<>();
+		for (Link link : links.values()) {
+			if (link.kind == kind) {
+				link.site.setTarget(target(link, backend));
+				changed.add(link.site);
+			}
+		}
+		MutableCallSite.syncAll(changed.toArray(new MutableCallSite[0]));
+	}
+
+	public static synchronized Backend getBackend(int kind) {
+		return backends[kind];
+	}
+
+	/**
+	 * @return the number of events of the given kind that went to the
+	 *         {@link Backend#COUNT} backend
+	 */
+	public static long count(int kind) {
+		return counts[kind].sum();
+	}
+}
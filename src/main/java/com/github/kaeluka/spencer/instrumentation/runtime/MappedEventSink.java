@@ -0,0 +1,100 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes records straight into memory-mapped segment files, so that writing
+ * a block of records costs about as much as copying it. Segments are named
+ * {@code <file>.000000}, {@code <file>.000001}, ... and each starts with the
+ * same header as a {@link BinaryEventSink} file, so every segment can be
+ * read on its own. When a segment is full, the sink rolls over to the next
+ * one; the last segment is truncated to its used size on close.
+ *
+ * @author Stephan Brandauer
+ */
+public final class MappedEventSink implements EventSink {
+	private final File file;
+	private final long segmentBytes;
+	private int segmentIndex = -1;
+	private RandomAccessFile segmentFile;
+	private MappedByteBuffer segment;
+	private LongBuffer longs;
+
+	public MappedEventSink(File file, long segmentBytes) {
+		// segments only ever contain whole records
+		final long records = (segmentBytes - BinaryEventSink.HEADER_BYTES) / EventKind.RECORD_BYTES;
+		if (records <= 0 || segmentBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("segment size must hold at least one record and be below 2GB, got "+segmentBytes);
+		}
+		this.file = file;
+		this.segmentBytes = BinaryEventSink.HEADER_BYTES + records * EventKind.RECORD_BYTES;
+		if (file.getParentFile() != null && !file.getParentFile().exists()) {
+			file.getParentFile().mkdirs();
+		}
+		this.nextSegment();
+	}
+
+	private File segmentFile(int index) {
+		return new File(String.format("%s.%06d", this.file.getPath(), index));
+	}
+
+	private void nextSegment() {
+		try {
+			this.closeSegment();
+			this.segmentIndex++;
+			this.segmentFile = new RandomAccessFile(this.segmentFile(this.segmentIndex), "rw");
+			this.segmentFile.setLength(0);
+			this.segment = this.segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.segmentBytes);
+			BinaryEventSink.putHeader(this.segment);
+			this.longs = this.segment.asLongBuffer();
+		} catch (IOException e) {
+			throw new UncheckedIOException("can not map trace segment "+this.segmentFile(this.segmentIndex), e);
+		}
+	}
+
+	private void closeSegment() throws IOException {
+		if (this.segmentFile != null) {
+			final long used = BinaryEventSink.HEADER_BYTES + (long) this.longs.position() * 8;
+			this.segment.force();
+			this.segmentFile.getChannel().truncate(used);
+			this.segmentFile.close();
+			this.segmentFile = null;
+			this.segment = null;
+			this.longs = null;
+		}
+	}
+
+	@Override
+	public void write(long[] words, int offset, int length) {
+		while (length > 0) {
+			if (!this.longs.hasRemaining()) {
+				this.nextSegment();
+			}
+			final int n = Math.min(length, this.longs.remaining());
+			this.longs.put(words, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	@Override
+	public void flush() {
+		this.segment.force();
+	}
+
+	@Override
+	public void close() {
+		try {
+			this.closeSegment();
+			BinaryEventSink.writeSites(this.file);
+		} catch (IOException e) {
+			throw new UncheckedIOException("can not close trace segment "+this.segmentFile(this.segmentIndex), e);
+		}
+	}
+}
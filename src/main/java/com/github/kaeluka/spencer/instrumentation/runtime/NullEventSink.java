@@ -0,0 +1,20 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+/**
+ * Drops all records. Useful to measure the cost of the hooks themselves.
+ *
+ * @author Stephan Brandauer
+ */
+public final class NullEventSink implements EventSink {
+	@Override
+	public void write(long[] words, int offset, int length) {
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
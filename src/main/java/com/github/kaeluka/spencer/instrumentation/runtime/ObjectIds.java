@@ -0,0 +1,129 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every object a unique, stable id the first time a hook sees it. The
+ * ids are kept in a weak identity hash table that is split into independently
+ * locked stripes, so threads rarely contend, objects are never kept alive by
+ * the table, and no application code (like {@code hashCode} or
+ * {@code toString}) is ever run. Id 0 stands for {@code null}. Ids are never
+ * reused, not even after their object was collected.
+ *
+ * @author Stephan Brandauer
+ */
+public final class ObjectIds {
+	private static final int STRIPE_BITS = 6;
+	private static final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+	private static final AtomicLong nextId = new AtomicLong(1);
+
+	static {
+		for (int i = 0; i < stripes.length; ++i) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	private ObjectIds() {
+	}
+
+	public static long id(Object obj) {
+		if (obj == null) {
+			return 0;
+		}
+		final int hash = System.identityHashCode(obj);
+		return stripes[hash & (stripes.length - 1)].id(obj, hash >>> STRIPE_BITS);
+	}
+
+	/**
+	 * @return the number of objects that currently have an id
+	 */
+	public static int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	private static final class Entry extends WeakReference<Object> {
+		final int hash;
+		final long id;
+		Entry next;
+
+		Entry(Object referent, ReferenceQueue<Object> queue, int hash, long id, Entry next) {
+			super(referent, queue);
+			this.hash = hash;
+			this.id = id;
+			this.next = next;
+		}
+	}
+
+	private static final class Stripe {
+		private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+		private Entry[] table = new Entry[64];
+		private int size = 0;
+
+		synchronized long id(Object obj, int hash) {
+			this.expunge();
+			Entry[] table = this.table;
+			int idx = hash & (table.length - 1);
+			for (Entry e = table[idx]; e != null; e = e.next) {
+				if (e.hash == hash && e.get() == obj) {
+					return e.id;
+				}
+			}
+			if (this.size >= table.length - (table.length >>> 2)) {
+				table = this.resize();
+				idx = hash & (table.length - 1);
+			}
+			final long id = nextId.getAndIncrement();
+			table[idx] = new Entry(obj, this.collected, hash, id, table[idx]);
+			this.size++;
+			return id;
+		}
+
+		synchronized int size() {
+			this.expunge();
+			return this.size;
+		}
+
+		private void expunge() {
+			Object ref;
+			while ((ref = this.collected.poll()) != null) {
+				final Entry dead = (Entry) ref;
+				final int idx = dead.hash & (this.table.length - 1);
+				Entry prev = null;
+				for (Entry e = this.table[idx]; e != null; prev = e, e = e.next) {
+					if (e == dead) {
+						if (prev == null) {
+							this.table[idx] = e.next;
+						} else {
+							prev.next = e.next;
+						}
+						this.size--;
+						break;
+					}
+				}
+			}
+		}
+
+		private Entry[] resize() {
+			final Entry[] old = this.table;
+			final Entry[] table = new Entry[old.length * 2];
+			for (Entry head : old) {
+				Entry e = head;
+				while (e != null) {
+					final Entry next = e.next;
+					final int idx = e.hash & (table.length - 1);
+					e.next = table[idx];
+					table[idx] = e;
+					e = next;
+				}
+			}
+			this.table = table;
+			return table;
+		}
+	}
+}
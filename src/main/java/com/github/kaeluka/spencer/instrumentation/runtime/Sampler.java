@@ -0,0 +1,53 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a sampled event is recorded. Instrumented code asks before
+ * it sets up the hook call, so events that are not sampled cost little more
+ * than this call.
+ *
+ * @author Stephan Brandauer
+ */
+public final class Sampler {
+	// per site; updated without synchronisation, as a lost update only shifts
+	// which event of a site is sampled next
+	private static volatile int[] counters = new int[4096];
+
+	private Sampler() {
+	}
+
+	/**
+	 * @return true for the first and then every n-th event at the given site
+	 */
+	public static boolean everyNth(int site, int n) {
+		int[] counters = Sampler.counters;
+		if (site >= counters.length) {
+			counters = grow(site);
+		}
+		final int count = counters[site];
+		counters[site] = (count + 1 >= n) ? 0 : count + 1;
+		return count == 0;
+	}
+
+	/**
+	 * @return true with a probability of 1/n
+	 */
+	public static boolean oneIn(int n) {
+		return ThreadLocalRandom.current().nextInt(n) == 0;
+	}
+
+	private static synchronized int[] grow(int site) {
+		int[] counters = Sampler.counters;
+		if (site >= counters.length) {
+			int size = counters.length;
+			while (site >= size) {
+				size *= 2;
+			}
+			final int[] grown = new int[size];
+			System.arraycopy(counters, 0, grown, 0, counters.length);
+			Sampler.counters = counters = grown;
+		}
+		return counters;
+	}
+}
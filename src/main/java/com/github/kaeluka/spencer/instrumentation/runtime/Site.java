@@ -0,0 +1,115 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The static information about one instrumentation site: everything that is
+ * known when the hook is emitted and therefore does not need to be passed to
+ * the hook at run time. Which of the fields are set depends on the kind.
+ *
+ * @author Stephan Brandauer
+ */
+public final class Site {
+	private final int kind;
+	private final String owner;
+	private final String name;
+	private final String desc;
+	private final String callerClass;
+	private final String callerMethod;
+	private final int var;
+
+	/**
+	 * @param kind
+	 *            the {@link EventKind} of the hook
+	 * @param owner
+	 *            the class owning the accessed field or entered method, or
+	 *            the array type for array accesses
+	 * @param name
+	 *            the field or method name
+	 * @param desc
+	 *            the field type or the method descriptor
+	 * @param callerClass
+	 *            the class containing the instrumented instruction
+	 * @param callerMethod
+	 *            the method containing the instrumented instruction
+	 * @param var
+	 *            the local variable index for variable hooks, -1 otherwise
+	 */
+	public Site(int kind, String owner, String name, String desc,
+			String callerClass, String callerMethod, int var) {
+		this.kind = kind;
+		this.owner = owner;
+		this.name = name;
+		this.desc = desc;
+		this.callerClass = callerClass;
+		this.callerMethod = callerMethod;
+		this.var = var;
+	}
+
+	public int getKind() {
+		return this.kind;
+	}
+
+	public String getOwner() {
+		return this.owner;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getDesc() {
+		return this.desc;
+	}
+
+	public String getCallerClass() {
+		return this.callerClass;
+	}
+
+	public String getCallerMethod() {
+		return this.callerMethod;
+	}
+
+	public int getVar() {
+		return this.var;
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeByte(this.kind);
+		writeString(out, this.owner);
+		writeString(out, this.name);
+		writeString(out, this.desc);
+		writeString(out, this.callerClass);
+		writeString(out, this.callerMethod);
+		out.writeInt(this.var);
+	}
+
+	public static Site read(DataInputStream in) throws IOException {
+		final int kind = in.readByte();
+		final String owner = readString(in);
+		final String name = readString(in);
+		final String desc = readString(in);
+		final String callerClass = readString(in);
+		final String callerMethod = readString(in);
+		return new Site(kind, owner, name, desc, callerClass, callerMethod, in.readInt());
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	@Override
+	public String toString() {
+		return EventKind.name(this.kind)+"("+this.owner+"."+this.name+" "+this.desc
+				+", var="+this.var+") in "+this.callerClass+"::"+this.callerMethod;
+	}
+}
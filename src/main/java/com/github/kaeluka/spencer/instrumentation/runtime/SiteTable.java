@@ -0,0 +1,146 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Maps the dense int ids that the instrumentation assigns to its hook sites
+ * to the {@link Site}s themselves. Instrumented code passes only the id to
+ * {@code NativeInterface}, decoders look the rest up here. Id 0 is never
+ * assigned.
+ *
+ * @author Stephan Brandauer
+ */
+public final class SiteTable {
+	private static volatile Site[] sites = new Site[1 << 12];
+	private static int next = 1;
+
+	/**
+	 * Hands out ranges of ids that no other JVM uses, so that instrumented
+	 * code can be reused across runs.
+	 */
+	public interface IdBlocks {
+		/**
+		 * @return the first id of a fresh block of {@code size} ids, at least
+		 *         {@code min}
+		 */
+		int reserve(int size, int min);
+	}
+
+	public static final int BLOCK_SIZE = 1 << 10;
+	private static IdBlocks blocks = null;
+	private static int blockEnd = Integer.MAX_VALUE;
+
+	static {
+		// the sites of classes that were instrumented ahead of time
+		final String files = System.getProperty("org.spencer.instrumentation.sites", "");
+		for (String file : files.split(File.pathSeparator)) {
+			if (!file.isEmpty()) {
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+					read(in);
+				} catch (IOException e) {
+					throw new UncheckedIOException("can not read sites from "+file, e);
+				}
+			}
+		}
+	}
+
+	private SiteTable() {
+	}
+
+	public static synchronized int register(Site site) {
+		if (next >= blockEnd) {
+			next = blocks.reserve(BLOCK_SIZE, next);
+			blockEnd = next + BLOCK_SIZE;
+		}
+		final int id = next++;
+		define(id, site);
+		return id;
+	}
+
+	/**
+	 * From now on, take ids from blocks reserved through the given source.
+	 */
+	public static synchronized void useBlocks(IdBlocks source) {
+		blocks = source;
+		blockEnd = next;
+	}
+
+	/**
+	 * Adds a site that was registered earlier (maybe by another run) under
+	 * its original id. Ids registered afterwards are guaranteed not to clash
+	 * with it.
+	 */
+	public static synchronized void restore(int id, Site site) {
+		define(id, site);
+		next = Math.max(next, id + 1);
+	}
+
+	private static void define(int id, Site site) {
+		Site[] sites = SiteTable.sites;
+		if (id >= sites.length) {
+			sites = Arrays.copyOf(sites, Math.max(sites.length * 2, id + 1));
+		}
+		sites[id] = site;
+		SiteTable.sites = sites;
+	}
+
+	public static Site get(int id) {
+		final Site[] sites = SiteTable.sites;
+		return (id > 0 && id < sites.length) ? sites[id] : null;
+	}
+
+	/**
+	 * Forgets all sites, for tools that instrument the same classes over and
+	 * over. Ids are handed out again from the start, unless they come from
+	 * reserved blocks.
+	 */
+	public static synchronized void clear() {
+		Arrays.fill(sites, null);
+		if (blocks == null) {
+			next = 1;
+		}
+	}
+
+	/**
+	 * @return an upper bound (exclusive) for the ids registered so far
+	 */
+	public static synchronized int size() {
+		return next;
+	}
+
+	public static synchronized void write(DataOutputStream out) throws IOException {
+		int count = 0;
+		for (int id = 1; id < next; ++id) {
+			if (sites[id] != null) {
+				count++;
+			}
+		}
+		out.writeInt(count);
+		for (int id = 1; id < next; ++id) {
+			if (sites[id] != null) {
+				out.writeInt(id);
+				sites[id].write(out);
+			}
+		}
+	}
+
+	/**
+	 * Adds sites written by {@link #write(DataOutputStream)} (for instance by
+	 * an earlier run) under their original ids. Ids registered afterwards are
+	 * guaranteed not to clash with them.
+	 */
+	public static synchronized void read(DataInputStream in) throws IOException {
+		final int count = in.readInt();
+		for (int i = 0; i < count; ++i) {
+			final int id = in.readInt();
+			restore(id, Site.read(in));
+		}
+	}
+}
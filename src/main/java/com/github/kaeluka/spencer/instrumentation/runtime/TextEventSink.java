@@ -0,0 +1,305 @@
+package com.github.kaeluka.spencer.instrumentation.runtime;
+
+import com.github.kaeluka.spencer.instrumentation.Instrument;
+
+import java.io.PrintStream;
+
+import static com.github.kaeluka.spencer.instrumentation.runtime.EventKind.*;
+
+/**
+ * Decodes records into the human readable, line based format that
+ * {@code NativeInterface} used to print directly. Objects are shown by their
+ * id, everything that is known statically is looked up in the
+ * {@link SiteTable}.
+ *
+ * @author Stephan Brandauer
+ */
+public final class TextEventSink implements EventSink {
+	private final PrintStream out;
+	private final StringBuilder line = new StringBuilder();
+	// the METHOD_ENTER record whose arguments are being collected
+	private Site enterSite = null;
+	private boolean enterIsStatic = false;
+	private long[] args = new long[ENTER_ARGS];
+	private int argc = 0;
+	private int argsSeen = 0;
+
+	public TextEventSink(PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(long[] words, int offset, int length) {
+		for (int i = offset; i < offset + length; i += RECORD_WORDS) {
+			this.decode(words, i);
+		}
+	}
+
+	private void decode(long[] w, int i) {
+		final long header = w[i];
+		final int kind = kind(header);
+		final StringBuilder sb = this.line;
+		if (kind != METHOD_ARGS) {
+			this.endPendingMethodEnter();
+			sb.setLength(0);
+		}
+		final Site site = (kind == METHOD_ARGS) ? null : SiteTable.get(lo(w[i+1]));
+		if (kind != METHOD_ARGS && site == null) {
+			sb.append(EventKind.name(kind)).append("(<unknown site ").append(lo(w[i+1])).append(">)");
+			this.out.println(sb);
+			return;
+		}
+		switch (kind) {
+		case LOAD_FIELD_A:
+		case LOAD_ARRAY_A:
+			sb.append("loadFieldA(      ");
+			appendValAndKind(sb, w[i+2], site.getOwner(), valKind1(header));
+			appendMember(sb, site, kind, w[i+6]);
+			sb.append(" :: ").append(site.getDesc()).append(", ")
+			.append("value= ");
+			appendObj(sb, w[i+4]);
+			sb.append(", ");
+			appendCaller(sb, site, w[i+3], valKind2(header));
+			break;
+		case STORE_FIELD_A:
+		case STORE_ARRAY_A:
+			sb.append("storeFieldA(     ");
+			appendValAndKind(sb, w[i+2], site.getOwner(), valKind1(header));
+			appendMember(sb, site, kind, w[i+6]);
+			sb.append(" = ");
+			appendObj(sb, w[i+4]);
+			sb.append(", oldVal=");
+			appendObj(sb, w[i+5]);
+			sb.append(", fieldType=").append(site.getDesc()).append(", ");
+			appendCaller(sb, site, w[i+3], valKind2(header));
+			break;
+		case LOAD_VAR:
+			sb.append("loadVar(         val=");
+			appendValAndKind(sb, w[i+2], "<UnknownClass>", valKind1(header));
+			sb.append(", var=").append(site.getVar()).append(", ");
+			appendCaller(sb, site, w[i+3], valKind2(header));
+			break;
+		case STORE_VAR:
+			sb.append("storeVar(        ");
+			appendValAndKind(sb, w[i+4], "<UnknownClass>", valKind1(header));
+			sb.append(", oldVal=");
+			appendValAndKind(sb, w[i+5], "<UnknownClass>", valKind3(header));
+			sb.append(", var=").append(site.getVar()).append(", ");
+			appendCaller(sb, site, w[i+3], valKind2(header));
+			break;
+		case READ:
+		case MODIFY:
+		case READ_ARRAY:
+		case MODIFY_ARRAY:
+			sb.append(kind == READ || kind == READ_ARRAY ? "read(            " : "modify(          ");
+			appendValAndKind(sb, w[i+2], site.getOwner(), valKind1(header));
+			appendMember(sb, site, kind, w[i+6]);
+			sb.append(", caller=");
+			appendValAndKind(sb, w[i+3], site.getCallerClass(), valKind2(header));
+			sb.append(", )");
+			break;
+		case METHOD_ENTER:
+			sb.append("methodEnter(     ");
+			appendValAndKind(sb, w[i+2], site.getOwner(), valKind1(header));
+			sb.append(" . ").append(site.getName()).append(site.getDesc())
+			.append(", args=[");
+			this.enterSite = site;
+			this.enterIsStatic = valKind1(header) == Instrument.SPECIAL_VAL_STATIC;
+			this.argc = hi(w[i+1]);
+			this.argsSeen = 0;
+			if (this.args.length < this.argc) {
+				this.args = new long[this.argc];
+			}
+			this.collectArgs(w, i+3, i+RECORD_WORDS);
+			if (this.argsSeen < this.argc) {
+				return;
+			}
+			this.appendArgs(sb);
+			sb.append("])");
+			break;
+		case METHOD_ARGS:
+			if (this.enterSite == null) {
+				// the METHOD_ENTER record was lost
+				return;
+			}
+			this.collectArgs(w, i+1, i+RECORD_WORDS);
+			if (this.argsSeen < this.argc) {
+				return;
+			}
+			this.appendArgs(sb);
+			sb.append("])");
+			break;
+		case METHOD_EXIT:
+			sb.append("methodExit(      ").append(site.getOwner()).append("::").append(site.getName()).append(")");
+			break;
+		case ACCESS_COUNT:
+			sb.append("accessCount(     ").append(EventKind.name(site.getKind())).append(' ')
+			.append(site.getOwner()).append(" . ").append(site.getName())
+			.append(", count=").append(w[i+2])
+			.append(", callerMethod=").append(site.getCallerMethod()).append(", )");
+			break;
+		case ARRAY_RANGE:
+			sb.append(site.getKind() == MODIFY_ARRAY ? "modifyRange(     " : "readRange(       ");
+			appendValAndKind(sb, w[i+2], site.getOwner(), valKind1(header));
+			sb.append(" . _[").append(w[i+6]).append(", ").append(w[i+7]).append("), ");
+			appendCaller(sb, site, w[i+3], valKind2(header));
+			break;
+		case AFTER_INIT:
+			sb.append("afterInitMethod( ");
+			appendObj(sb, w[i+2]);
+			sb.append(", calleeClass=").append(site.getOwner()).append(", )");
+			break;
+		case NEW_OBJ:
+			sb.append("newObj(created=");
+			appendObj(sb, w[i+2]);
+			sb.append(", createdClass=").append(site.getOwner())
+			.append(", callerClass=").append(site.getCallerClass())
+			.append(", callerMethod=").append(site.getCallerMethod())
+			.append(", callerValKind=").append(valKindToString(valKind2(header)))
+			.append(", caller=");
+			appendObj(sb, w[i+3]);
+			sb.append(", )");
+			break;
+		default:
+			sb.append(EventKind.name(kind));
+			break;
+		}
+		this.enterSite = null;
+		this.out.println(sb);
+	}
+
+	private void collectArgs(long[] w, int from, int to) {
+		for (int a = from; a < to && this.argsSeen < this.argc; ++a) {
+			this.args[this.argsSeen++] = w[a];
+		}
+	}
+
+	private void endPendingMethodEnter() {
+		if (this.enterSite != null) {
+			for (int a = 0; a < this.argsSeen; ++a) {
+				if (a > 0) {
+					this.line.append(", ");
+				}
+				appendObj(this.line, this.args[a]);
+			}
+			this.line.append(" <truncated>])");
+			this.out.println(this.line);
+			this.enterSite = null;
+		}
+	}
+
+	/**
+	 * The hooks only get the reference typed arguments. This puts them back
+	 * at their positions in the parameter list, with {@code null} standing in
+	 * for primitives and for {@code this}.
+	 */
+	private void appendArgs(StringBuilder sb) {
+		final String desc = this.enterSite.getDesc();
+		if (this.enterSite.getOwner().startsWith("[") || desc == null || !desc.startsWith("(")) {
+			// array creation, or no descriptor to go by
+			for (int a = 0; a < this.argc; ++a) {
+				if (a > 0) {
+					sb.append(", ");
+				}
+				appendObj(sb, this.args[a]);
+			}
+			return;
+		}
+		boolean first = true;
+		if (!this.enterIsStatic) {
+			sb.append("null");
+			first = false;
+		}
+		int next = 0;
+		int pos = 1;
+		while (desc.charAt(pos) != ')') {
+			if (!first) {
+				sb.append(", ");
+			}
+			first = false;
+			final int start = pos;
+			while (desc.charAt(pos) == '[') {
+				pos++;
+			}
+			if (desc.charAt(pos) == 'L') {
+				pos = desc.indexOf(';', pos);
+			}
+			final boolean isReference = pos > start;
+			pos++;
+			if (isReference && next < this.argc) {
+				appendObj(sb, this.args[next++]);
+			} else {
+				sb.append("null");
+			}
+		}
+	}
+
+	private static void appendMember(StringBuilder sb, Site site, int kind, long index) {
+		sb.append(" . ");
+		switch (kind) {
+		case LOAD_ARRAY_A:
+		case STORE_ARRAY_A:
+		case READ_ARRAY:
+		case MODIFY_ARRAY:
+			// array accesses have no field name, but an index
+			sb.append('_').append((int) index);
+			break;
+		default:
+			sb.append(site.getName());
+		}
+	}
+
+	private static void appendCaller(StringBuilder sb, Site site, long caller, int callerValKind) {
+		sb.append("callerMethod=").append(site.getCallerMethod()).append(", caller=");
+		appendValAndKind(sb, caller, site.getCallerClass(), callerValKind);
+		sb.append(", )");
+	}
+
+	private static void appendObj(StringBuilder sb, long oid) {
+		if (oid == 0) {
+			sb.append("null");
+		} else {
+			sb.append('#').append(oid);
+		}
+	}
+
+	private static void appendValAndKind(StringBuilder sb, long oid, String type, int valKind) {
+		switch (valKind) {
+		case Instrument.SPECIAL_VAL_NORMAL:
+			if (oid != 0) {
+				sb.append('#').append(oid);
+			} else {
+				sb.append("NULL:").append(type).append('\t');
+			}
+			break;
+		case Instrument.SPECIAL_VAL_THIS:
+		case Instrument.SPECIAL_VAL_STATIC:
+			sb.append(valKindToString(valKind)).append(':').append(type);
+			break;
+		default:
+			sb.append(valKindToString(valKind)).append('\t');
+		}
+	}
+
+	private static String valKindToString(int valKind) {
+		switch (valKind) {
+		case Instrument.SPECIAL_VAL_NORMAL:          return "SPECIAL_VAL_NORMAL";
+		case Instrument.SPECIAL_VAL_THIS:            return "THIS";
+		case Instrument.SPECIAL_VAL_STATIC:          return "STATIC";
+		case Instrument.SPECIAL_VAL_NOT_IMPLEMENTED: return "NOT_IMPLEMENTED";
+		case Instrument.SPECIAL_VAL_JVM:             return "JVM";
+		default:                                     return "SPECIAL_VAL_MAX";
+		}
+	}
+
+	@Override
+	public void flush() {
+		this.out.flush();
+	}
+
+	@Override
+	public void close() {
+		this.endPendingMethodEnter();
+		this.out.flush();
+	}
+}